@@ -0,0 +1,81 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Runs a task for a list of servers in parallel with a bounded number of threads and prints the progress.
+ */
+class BatchRunner {
+
+    private static final String PROGRESS_FORMAT = "\r%d/%d done";
+
+    private final int parallelism;
+
+    /**
+     * @param parallelism The maximum number of servers that are handled at the same time.
+     */
+    BatchRunner(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Runs the task for every given server and waits until all of them are done.
+     * A task that throws doesn't abort the others, the exception is turned into the result of its server instead.
+     *
+     * @param targets The servers to run the task for.
+     * @param task The task mapping a server to its result.
+     * @param failure Maps an exception thrown by the task to the result of its server.
+     * @param <T> The type of the results.
+     * @return The results in the same order as {@code targets}.
+     * @throws InterruptedException If the waiting thread is interrupted. Running tasks are cancelled.
+     */
+    <T> List<T> run(List<Server> targets, Function<Server, T> task, Function<RuntimeException, T> failure)
+            throws InterruptedException {
+        List<T> results = new ArrayList<>(targets.size());
+
+        if (targets.isEmpty()) {
+            return results;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, targets.size()));
+        CompletionService<Integer> completion = new ExecutorCompletionService<>(executor);
+        Object[] slots = new Object[targets.size()];
+
+        try {
+            for (int i = 0; i < targets.size(); i++) {
+                final int index = i;
+                completion.submit(() -> {
+                    try {
+                        slots[index] = task.apply(targets.get(index));
+                    } catch (RuntimeException e) {
+                        slots[index] = failure.apply(e);
+                    }
+                    return index;
+                });
+            }
+
+            for (int done = 1; done <= targets.size(); done++) {
+                completion.take().get();
+                System.out.printf(PROGRESS_FORMAT, done, targets.size());
+            }
+            System.out.println();
+        } catch (ExecutionException e) {
+            // Only errors get here, runtime exceptions already became results
+            throw (Error) e.getCause();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (Object slot : slots) {
+            @SuppressWarnings("unchecked")
+            T result = (T) slot;
+            results.add(result);
+        }
+        return results;
+    }
+
+}
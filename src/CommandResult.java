@@ -0,0 +1,46 @@
+/**
+ * The outcome of a command executed on a server via SSH.
+ */
+class CommandResult {
+
+    /**
+     * The exit status of a command that didn't finish or whose server couldn't be reached.
+     */
+    static final int NO_EXIT_STATUS = -1;
+
+    final boolean connected;
+    final boolean timedOut;
+    final int exitStatus;
+    final String output;
+
+    CommandResult(boolean connected, boolean timedOut, int exitStatus, String output) {
+        this.connected = connected;
+        this.timedOut = timedOut;
+        this.exitStatus = exitStatus;
+        this.output = output;
+    }
+
+    /**
+     * Whether the command ran and exited with status 0.
+     *
+     * @return {@code true} if and only if the command succeeded.
+     */
+    boolean succeeded() {
+        return connected && !timedOut && exitStatus == 0;
+    }
+
+    /**
+     * Describes the result for the result tables.
+     *
+     * @return {@code Unreachable}, {@code Timed out} or the exit status.
+     */
+    String describe() {
+        if (!connected) {
+            return "Unreachable";
+        } else if (timedOut) {
+            return "Timed out";
+        }
+        return "Exit " + exitStatus;
+    }
+
+}
@@ -0,0 +1,452 @@
+import com.jcraft.jsch.JSchException;
+import de.vandermeer.asciitable.AsciiTable;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.TransportMapping;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays a fleet of simulated servers with scripted failures against the real check and restart logic.
+ *
+ * The {@link ServerManager} and its {@link Server}s run unchanged on a {@link VirtualClock}. Their SNMP requests are
+ * answered by simulated PDUs and their soft restarts by simulated SSH endpoints, so a long run against a large fleet
+ * takes seconds and gives the same result for the same seed.
+ */
+class FleetSimulation {
+
+    // CONSTANTS
+    private static final int OUTLETS_PER_PDU = 48;
+    private static final int TRIGGER_MIN_POWER = 150;
+    private static final int HUNG_POWER = 80;
+    private static final int CRASHED_POWER = 10;
+    private static final int DIP_POWER = 100;
+    private static final long SNMP_LATENCY = 5; // milliseconds
+    private static final long BOOT_DURATION = 90 * 1000L;
+    private static final double FAILURES_PER_SERVER_HOUR = 0.002;
+    private static final double DIPS_PER_SERVER_HOUR = 0.01;
+    private static final int MAX_DIP_CYCLES = 3;
+
+    /**
+     * The check intervals within which a failure is detected. No random failures start within the last ones of a
+     * run, so every injected failure can be detected before it ends.
+     */
+    static final int MAX_DETECTION_CYCLES = 3;
+
+    /**
+     * The failures a simulated server can suffer.
+     */
+    enum Failure {
+
+        /**
+         * The server idles below its minimum power and doesn't answer via SSH, so it has to be power cycled.
+         */
+        hang,
+
+        /**
+         * The server idles below its minimum power but still answers via SSH, a soft restart fixes it.
+         */
+        wedgedService,
+
+        /**
+         * The server has crashed and almost draws no power.
+         */
+        crash,
+
+        /**
+         * Not a failure: the load drops below the minimum power for a few cycles. Restarting is a false positive.
+         */
+        loadDip
+    }
+
+    /**
+     * A scripted event of the simulation.
+     */
+    private static class Event {
+
+        final long time;
+        final int machine;
+        final Failure failure;
+        final long duration;
+
+        Event(long time, int machine, Failure failure, long duration) {
+            this.time = time;
+            this.machine = machine;
+            this.failure = failure;
+            this.duration = duration;
+        }
+    }
+
+    private final VirtualClock clock;
+    private final File stateFile;
+    private final int checkInterval;
+    private final List<Event> events = new ArrayList<>();
+    private int nextEvent = 0;
+    private final Machine[] machines;
+    private final ServerManager manager;
+    private final Random random;
+
+    // Results
+    private int failuresInjected = 0;
+    private int failuresDetected = 0;
+    private long totalDetectionLatency = 0;
+    private long maxDetectionLatency = 0;
+    private int softRestarts = 0;
+    private int hardRestarts = 0;
+    private int falsePositiveRestarts = 0;
+    private long readings = 0;
+    private long simulatedTime = 0;
+    private long wallTime = 0;
+
+    /**
+     * The simulated hardware behind one server: its power draw and SSH endpoint.
+     */
+    private class Machine {
+
+        final int baseDraw;
+        Failure failure = null;
+        long failedSince = -1;
+        long dipUntil = 0;
+        long bootUntil = 0;
+        boolean outletOn = true;
+
+        Machine(int baseDraw) {
+            this.baseDraw = baseDraw;
+        }
+
+        int reading(long now) {
+            if (!outletOn) {
+                return 0;
+            } else if (now < bootUntil) {
+                return baseDraw;
+            } else if (failure == Failure.hang || failure == Failure.wedgedService) {
+                return HUNG_POWER;
+            } else if (failure == Failure.crash) {
+                return CRASHED_POWER;
+            } else if (now < dipUntil) {
+                return DIP_POWER;
+            }
+            return baseDraw;
+        }
+
+        boolean answersSsh(long now) {
+            return outletOn && now >= bootUntil && failure != Failure.hang && failure != Failure.crash;
+        }
+
+        void fail(Failure newFailure, long now, long duration) {
+            if (newFailure == Failure.loadDip) {
+                dipUntil = now + duration;
+            } else if (failure == null) {
+                failure = newFailure;
+                failedSince = now;
+                failuresInjected++;
+            }
+        }
+
+        /**
+         * Records a restart issued by the manager and boots the machine.
+         */
+        void restart(long now) {
+            if (failure != null) {
+                long latency = now - failedSince;
+                failuresDetected++;
+                totalDetectionLatency += latency;
+                maxDetectionLatency = Math.max(maxDetectionLatency, latency);
+            } else {
+                falsePositiveRestarts++;
+            }
+            failure = null;
+            failedSince = -1;
+            dipUntil = 0;
+            bootUntil = now + BOOT_DURATION;
+        }
+
+        void switchPower(boolean on, long now) {
+            if (!on && outletOn) {
+                hardRestarts++;
+                restart(now);
+            } else if (on) {
+                bootUntil = now + BOOT_DURATION;
+            }
+            outletOn = on;
+        }
+    }
+
+    /**
+     * Answers the requests of the pollers and power switches with the state of the simulated machines.
+     */
+    private class SimulatedSnmp extends Snmp {
+
+        private final Map<String, Machine[]> pdus = new HashMap<>();
+
+        void addPdu(String pduAddress, Machine[] outlets) {
+            pdus.put(pduAddress, outlets);
+        }
+
+        private Machine machineOf(Target<?> target, OID oid) {
+            Machine[] outlets = pdus.get(pduAddressOf(target));
+            int outlet = oid.get(9) - 1;
+            return outlets == null || outlet < 0 || outlet >= outlets.length ? null : outlets[outlet];
+        }
+
+        private String pduAddressOf(Target<?> target) {
+            String address = target.getAddress().toString();
+            int port = address.indexOf('/');
+            return port < 0 ? address : address.substring(0, port);
+        }
+
+        @Override
+        public <A extends Address> ResponseEvent<A> send(PDU request, Target<A> target) {
+            clock.sleep(SNMP_LATENCY);
+            PDU response = new PDU();
+            response.setType(PDU.RESPONSE);
+            response.setRequestID(new Integer32(request.getRequestID().getValue()));
+
+            for (int i = 0; i < request.size(); i++) {
+                OID oid = request.get(i).getOid();
+                Machine machine = machineOf(target, oid);
+                response.add(new VariableBinding(oid, new Integer32(machine == null ? 0 : machine.reading(clock.currentTimeMillis()))));
+                readings++;
+            }
+            return new ResponseEvent<>(this, target.getAddress(), request, response, null);
+        }
+
+        @Override
+        public <A extends Address> ResponseEvent<A> send(PDU request, Target<A> target,
+                                                         TransportMapping<? super A> transport) {
+            clock.sleep(SNMP_LATENCY);
+
+            for (int i = 0; i < request.size(); i++) {
+                Machine machine = machineOf(target, request.get(i).getOid());
+
+                if (machine != null) {
+                    machine.switchPower(request.get(i).getVariable().toInt() == 0, clock.currentTimeMillis());
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A server whose SSH endpoint is simulated.
+     */
+    private class SimulatedServer extends Server {
+
+        private final Machine machine;
+
+        SimulatedServer(String id, String pduAddress, int pduOutletNumber, Snmp snmp, Machine machine)
+                throws JSchException {
+            super(id, "", pduAddress, 1, pduOutletNumber, TRIGGER_MIN_POWER, "", true, snmp);
+            this.machine = machine;
+            setTimeSource(clock);
+        }
+
+        @Override
+        public boolean softRestart() {
+            clock.sleep(SNMP_LATENCY);
+
+            if (!machine.answersSsh(clock.currentTimeMillis())) {
+                return false;
+            }
+            softRestarts++;
+            machine.restart(clock.currentTimeMillis());
+            return true;
+        }
+    }
+
+    /**
+     * Creates a simulated fleet with randomly scheduled failures.
+     *
+     * @param serverCount The number of servers.
+     * @param hours The simulated duration in hours, used to schedule the random failures. No failures start within
+     *              the last {@link #MAX_DETECTION_CYCLES} check intervals.
+     * @param checkInterval The time in seconds to be waited within server activity checks.
+     * @param seed The seed of all random decisions.
+     * @throws IOException If the temporary state file cannot be created.
+     * @throws JSchException If a server cannot be created.
+     */
+    FleetSimulation(int serverCount, double hours, int checkInterval, long seed) throws IOException, JSchException {
+        this.clock = new VirtualClock(0) {
+
+            @Override
+            public void sleep(long millis) {
+                super.sleep(millis);
+                applyDueEvents();
+            }
+        };
+        this.stateFile = File.createTempFile("simulation", ".state");
+        this.checkInterval = checkInterval;
+        this.random = new Random(seed);
+        SimulatedSnmp snmp = new SimulatedSnmp();
+        machines = new Machine[serverCount];
+        List<Server> servers = new ArrayList<>();
+
+        for (int pdu = 0; pdu * OUTLETS_PER_PDU < serverCount; pdu++) {
+            String pduAddress = "10." + (pdu / 65536) + "." + (pdu / 256 % 256) + "." + (pdu % 256);
+            Machine[] outlets = new Machine[Math.min(OUTLETS_PER_PDU, serverCount - pdu * OUTLETS_PER_PDU)];
+
+            for (int outlet = 0; outlet < outlets.length; outlet++) {
+                int index = pdu * OUTLETS_PER_PDU + outlet;
+                outlets[outlet] = new Machine(TRIGGER_MIN_POWER + 50 + random.nextInt(250));
+                machines[index] = outlets[outlet];
+                servers.add(new SimulatedServer(String.format("sim-%05d", index), pduAddress, outlet + 1, snmp,
+                        outlets[outlet]));
+            }
+            snmp.addPdu(pduAddress, outlets);
+        }
+        manager = new ServerManager(servers, snmp, checkInterval, stateFile, clock);
+        scheduleRandomEvents(hours);
+    }
+
+    private void scheduleRandomEvents(double hours) {
+        long duration = (long) (hours * 3600 * 1000);
+        long lastFailure = duration - MAX_DETECTION_CYCLES * checkInterval * 1000L;
+        Failure[] failures = {Failure.hang, Failure.wedgedService, Failure.crash};
+
+        for (int machine = 0; machine < machines.length; machine++) {
+            long time = nextArrival(0, FAILURES_PER_SERVER_HOUR);
+
+            while (time < lastFailure) {
+                scheduleFailure(time, machine, failures[random.nextInt(failures.length)], 0);
+                time = nextArrival(time, FAILURES_PER_SERVER_HOUR);
+            }
+            time = nextArrival(0, DIPS_PER_SERVER_HOUR);
+
+            while (time < duration) {
+                long dipDuration = (1 + random.nextInt(MAX_DIP_CYCLES)) * checkInterval * 1000L;
+                scheduleFailure(time, machine, Failure.loadDip, dipDuration);
+                time = nextArrival(time, DIPS_PER_SERVER_HOUR);
+            }
+        }
+    }
+
+    private long nextArrival(long time, double perHour) {
+        return time + (long) (-Math.log(1 - random.nextDouble()) / perHour * 3600 * 1000);
+    }
+
+    /**
+     * Scripts a failure of a server.
+     *
+     * @param time The simulated time in milliseconds at which the failure starts.
+     * @param machine The index of the server.
+     * @param failure The kind of failure.
+     * @param duration The duration in milliseconds of a {@link Failure#loadDip}, ignored for other failures.
+     */
+    void scheduleFailure(long time, int machine, Failure failure, long duration) {
+        events.add(new Event(time, machine, failure, duration));
+    }
+
+    /**
+     * Runs the manager's check cycle until the given simulated time has passed. A simulation can only be run once.
+     *
+     * @param hours The simulated duration in hours.
+     */
+    void run(double hours) {
+        events.sort((a, b) -> Long.compare(a.time, b.time));
+        Logger logger = Logger.getLogger("main");
+        Level level = logger.getLevel();
+        logger.setLevel(Level.OFF);
+        long wallStart = System.nanoTime();
+
+        try {
+            applyDueEvents();
+            manager.runCheckCycle((long) (hours * 3600 * 1000), false);
+        } finally {
+            manager.exit();
+            stateFile.delete();
+            logger.setLevel(level);
+        }
+        wallTime = (System.nanoTime() - wallStart) / 1000000;
+        simulatedTime = clock.currentTimeMillis();
+    }
+
+    private void applyDueEvents() {
+        for (; nextEvent < events.size() && events.get(nextEvent).time <= clock.currentTimeMillis(); nextEvent++) {
+            Event event = events.get(nextEvent);
+            machines[event.machine].fail(event.failure, clock.currentTimeMillis(), event.duration);
+        }
+    }
+
+    int getFailuresInjected() {
+        return failuresInjected;
+    }
+
+    int getFailuresDetected() {
+        return failuresDetected;
+    }
+
+    long getMaxDetectionLatency() {
+        return maxDetectionLatency;
+    }
+
+    int getSoftRestarts() {
+        return softRestarts;
+    }
+
+    int getHardRestarts() {
+        return hardRestarts;
+    }
+
+    int getFalsePositiveRestarts() {
+        return falsePositiveRestarts;
+    }
+
+    /**
+     * Returns the results of the last run as a table to print out.
+     *
+     * @return A formatted String.
+     */
+    String fetchReport() {
+        AsciiTable table = new AsciiTable();
+        table.addRule();
+        table.addRow("Metric", "Value");
+        table.addRule();
+        table.addRow("Servers", machines.length);
+        table.addRow("Simulated time", String.format("%.1f h", simulatedTime / 3600000.0));
+        table.addRow("Wall time", wallTime + " ms");
+        table.addRow("Check cycles", manager.getCycleCount());
+        table.addRow("Readings per wall second", wallTime > 0 ? readings * 1000 / wallTime : readings);
+        table.addRow("Failures injected", failuresInjected);
+        table.addRow("Failures detected", failuresDetected);
+        table.addRow("Mean detection latency", failuresDetected > 0
+                ? totalDetectionLatency / failuresDetected / 1000 + " s" : "-");
+        table.addRow("Max detection latency", maxDetectionLatency / 1000 + " s");
+        table.addRow("Soft restarts", softRestarts);
+        table.addRow("Hard restarts", hardRestarts);
+        table.addRow("False-positive restarts", falsePositiveRestarts);
+        table.addRule();
+        return table.render();
+    }
+
+    /**
+     * Runs a simulation and prints its report.
+     *
+     * @param args The number of servers, the simulated hours, the check interval in seconds and the seed. All optional.
+     * @throws IOException If the temporary state file cannot be created.
+     * @throws JSchException If a server cannot be created.
+     */
+    public static void main(String[] args) throws IOException, JSchException {
+        int serverCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        double hours = args.length > 1 ? Double.parseDouble(args[1]) : 24;
+        int checkInterval = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+        FleetSimulation simulation = new FleetSimulation(serverCount, hours, checkInterval, seed);
+        simulation.run(hours);
+        System.out.println(simulation.fetchReport());
+    }
+
+}
@@ -5,6 +5,9 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -14,6 +17,7 @@ public class Main {
 
     // Constants
     private static final String SHELL_PROMPT = "manager> ";
+    private static final String COMMAND_SEPARATOR = "--";
     private static final String INFO_RELOADING = "Reloading config. Please start the check cycle manually.";
     private static final String INFO_STARTING = "Starting check cycle.";
     private static final String INFO_STOPPING = "Stopping check cycle.";
@@ -21,13 +25,12 @@ public class Main {
     private static final String ERR_CMD_UNKNOWN = "The command you've entered does not exist.";
     private static final String ERR_CMD_INVALID = "Invalid command usage.";
     private static final String ERR_TOO_FEW_ARGS = "Not enough arguments.";
-    private static final String ERR_TOO_MANY_ARGS = "Too many arguments.";
     private static final String ERR_SERVER_NOT_FOUND = "Server with given ID not found.";
+    private static final String ERR_NO_SERVER_SELECTED = "No server matches the given selector.";
+    private static final String ERR_BATCH_INTERRUPTED = "Batch command interrupted.";
     private static final String ERR_PDU_CONNECTION = "PDU of server %s unreachable";
     private static final String ERR_CONFIG_FILE_BAD = "Config file is not well formatted.";
     private static final String ERR_CONFIG_FILE_NOT_FOUND = "Config file not found. Creating one in current path.";
-    private static final int ONE_ARG = 2;
-    private static final int TWO_ARGS = 3;
 
     // Class values
     private static ServerManager manager;
@@ -111,6 +114,14 @@ public class Main {
             case "RELOAD":
                 reloadCmd();
                 break;
+            case "P":
+            case "POWER":
+                powerCmd();
+                break;
+            case "E":
+            case "EXEC":
+                execCmd(cmd, tokens);
+                break;
             case "H":
             case "HELP":
                 helpCmd();
@@ -130,6 +141,10 @@ public class Main {
         System.out.println(manager.fetchContent());
     }
 
+    private static void powerCmd() {
+        System.out.println(manager.fetchPowerContent());
+    }
+
     private static void activateCmd() {
         printInfo(INFO_STARTING);
         manager.startCheckCycle();
@@ -141,46 +156,112 @@ public class Main {
     }
 
     private static void statusCmd(String[] tokens) {
-        if (matchesArgsNum(tokens.length, ONE_ARG)) {
-            String id = tokens[1];
-            id = id.replaceAll("\"", "");
+        ServerSelector selector = parseSelector(tokens, 1);
 
+        if (selector == null) {
+            return;
+        }
+
+        if (selector.isSingleId()) {
             try {
-                String status = manager.fetchStatusOf(id);
+                String status = manager.fetchStatusOf(selector.getIdPattern());
                 System.out.println(status);
             } catch (IllegalArgumentException e) {
                 printError(ERR_SERVER_NOT_FOUND, false);
             }
+        } else {
+            try {
+                System.out.println(manager.fetchStatusOf(selector));
+            } catch (IllegalArgumentException e) {
+                printError(ERR_NO_SERVER_SELECTED, false);
+            } catch (InterruptedException e) {
+                printError(ERR_BATCH_INTERRUPTED, false);
+            }
         }
     }
 
     private static void restartCmd(String[] tokens) {
-        int args = tokens.length;
-
-        if (args == ONE_ARG) {
-            String id = tokens[1];
-            id = id.replaceAll("\"", "");
-            tryRestart(id, false);
-        } else if (matchesArgsNum(args, TWO_ARGS)) {
-            String id = null;
-            if (tokens[1].equalsIgnoreCase("-H")) {
-                id = tokens[2];
-            } else if (tokens[2].equalsIgnoreCase("-H")) {
-                id = tokens[1];
-            }
+        List<String> args = new ArrayList<>(Arrays.asList(tokens));
+        boolean hardRestart = args.removeIf(token -> token.equalsIgnoreCase("-H") || token.equalsIgnoreCase("--HARD"));
+        ServerSelector selector = parseSelector(args.toArray(new String[0]), 1);
+
+        if (selector == null) {
+            return;
+        }
 
-            if (id == null) {
-                printError(ERR_CMD_INVALID, true);
-            } else {
-                id = id.replaceAll("\"", "");
-                tryRestart(id, true);
+        if (selector.isSingleId()) {
+            tryRestart(selector.getIdPattern(), hardRestart);
+        } else {
+            try {
+                System.out.println(manager.restartServers(selector, hardRestart));
+            } catch (IllegalArgumentException e) {
+                printError(ERR_NO_SERVER_SELECTED, false);
+            } catch (InterruptedException e) {
+                printError(ERR_BATCH_INTERRUPTED, false);
             }
         }
     }
 
+    private static void execCmd(String cmd, String[] tokens) {
+        String command = commandAfterSeparator(cmd);
+
+        if (command == null) {
+            printError(ERR_CMD_INVALID, true);
+            return;
+        }
+        int separator = Arrays.asList(tokens).indexOf(COMMAND_SEPARATOR);
+        ServerSelector selector = parseSelector(Arrays.copyOf(tokens, separator), 1);
+
+        if (selector == null) {
+            return;
+        }
+
+        try {
+            System.out.println(manager.executeCommand(selector, command));
+        } catch (IllegalArgumentException e) {
+            printError(ERR_NO_SERVER_SELECTED, false);
+        } catch (InterruptedException e) {
+            printError(ERR_BATCH_INTERRUPTED, false);
+        }
+    }
+
+    /**
+     * Extracts the command to execute from an exec command, i.e. everything after the first {@code --} token.
+     * The whitespace within the command is kept as entered.
+     *
+     * @param cmd The raw user input.
+     * @return The command or {@code null} if the separator or the command is missing.
+     */
+    static String commandAfterSeparator(String cmd) {
+        String[] parts = cmd.trim().split("\\s" + COMMAND_SEPARATOR + "(\\s+|$)", 2);
+        return parts.length < 2 || parts[1].isEmpty() ? null : parts[1];
+    }
+
+    /**
+     * Parses the server selector of a command, e.g. {@code rack3-*}, {@code --tag db} or {@code --pdu 10.0.0.5}.
+     * Prints out an error if the selector is missing or malformed.
+     *
+     * @param tokens The command tokens.
+     * @param firstArg The index of the first token belonging to the selector.
+     * @return The selector or {@code null} if it couldn't be parsed.
+     */
+    private static ServerSelector parseSelector(String[] tokens, int firstArg) {
+        if (tokens.length <= firstArg) {
+            printError(ERR_TOO_FEW_ARGS, true);
+            return null;
+        }
+
+        try {
+            return ServerSelector.parse(Arrays.asList(tokens).subList(firstArg, tokens.length));
+        } catch (IllegalArgumentException e) {
+            printError(ERR_CMD_INVALID, true);
+            return null;
+        }
+    }
+
     private static void tryRestart(String id, boolean hardRestart) {
         try {
-            manager.restartServer(id, hardRestart);
+            System.out.println("Server " + id + ": " + manager.restartServer(id, hardRestart) + ".");
         } catch (IOException e) {
             String error = String.format(ERR_PDU_CONNECTION, id);
             printError(error, false);
@@ -215,32 +296,17 @@ public class Main {
         System.out.println("Available commands:");
         String cmdFormat = "%-10s %-15s %-10s%n";
         System.out.printf(cmdFormat, "LIST", "", "Prints the loaded servers.");
-        System.out.printf(cmdFormat, "STATUS", "<String:ID>", "Prints the status and power usage of the given server.");
+        System.out.printf(cmdFormat, "STATUS", "<Selector>", "Prints the status and power usage of the selected servers.");
+        System.out.printf(cmdFormat, "POWER", "", "Prints the current and peak power draw and headroom of every PDU and PDU group.");
         System.out.printf(cmdFormat, "ACTIVATE", "", "Activates the server status checker.");
         System.out.printf(cmdFormat, "DEACTIVATE", "", "Deactivates the server status checker.");
-        System.out.printf(cmdFormat, "RESTART", "<ID>", "Restarts the given server. Optional Parameter -h hard restarts the server.");
+        System.out.printf(cmdFormat, "RESTART", "<Selector>", "Restarts the selected servers. Optional Parameter -h hard restarts them.");
+        System.out.printf(cmdFormat, "EXEC", "<Sel> -- <Cmd>", "Executes a configured or given command via ssh on the selected servers.");
         System.out.printf(cmdFormat, "RELOAD", "", "Deactivates the server status checker and reloads the config.");
         System.out.printf(cmdFormat, "HELP", "", "Take three guesses.");
         System.out.printf(cmdFormat, "QUIT", "", "Quits the program.");
-    }
-
-    /**
-     * Checks whether a given number of arguments matches an intended number
-     * of arguments. Prints out an error otherwise.
-     *
-     * @param givenArgs    The number of args given.
-     * @param intendedArgs The number of args that were intended.
-     * @return {@code true} if and only if numbers match.
-     */
-    private static boolean matchesArgsNum(int givenArgs, int intendedArgs) {
-        if (givenArgs < intendedArgs) {
-            printError(ERR_TOO_FEW_ARGS, true);
-        } else if (givenArgs > intendedArgs) {
-            printError(ERR_TOO_MANY_ARGS, true);
-        } else {
-            return true;
-        }
-        return false;
+        System.out.println("A selector is either a server ID, an ID pattern with * and ? wildcards, --tag <Tag> or --pdu <IP>"
+                + " or a combination of them.");
     }
 
     private static void printInfo(String info) {
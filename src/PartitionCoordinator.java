@@ -0,0 +1,405 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Splits the servers between several manager instances sharing a coordination directory.
+ *
+ * Every instance holds an exclusive lock on its own lease file for as long as it runs and regularly writes a
+ * heartbeat into it. The lock is released by the OS when the process dies, a hung process is recognized by its
+ * outdated heartbeat. Partitions, i.e. PDU addresses or PDU groups, are assigned to the live instances via consistent
+ * hashing, so only the partitions of a joining or dead instance move.
+ *
+ * An instance only checks the servers of a partition while it holds the lock of its partition lock file. A partition
+ * moving to another instance stays locked until its previous owner notices the new assignment and releases it, so two
+ * instances never check the same servers. A hung instance keeps its partitions until it resumes or dies.
+ */
+class PartitionCoordinator {
+
+    // CONSTANTS
+    private static final String LEASE_SUFFIX = ".lease";
+    private static final String DIRECTORY_LOCK_NAME = "coordinator.lock";
+    private static final String PARTITION_LOCK_PREFIX = "partition-";
+    private static final String PARTITION_LOCK_SUFFIX = ".lock";
+    private static final int VIRTUAL_NODES = 64;
+
+    /**
+     * Lease files locked by this JVM. They must not be probed, closing a second channel of a locked file would
+     * release the lock.
+     */
+    private static final Set<String> LOCAL_LEASES = Collections.synchronizedSet(new HashSet<>());
+
+    /**
+     * Partition lock files locked by this JVM, for the same reason as {@link #LOCAL_LEASES}.
+     */
+    private static final Set<String> LOCAL_PARTITIONS = new HashSet<>();
+
+    private final File directory;
+    private final String instanceId;
+    private final long leaseTimeout;
+    private final TimeSource time;
+    private final Logger logger;
+
+    private RandomAccessFile leaseFile;
+    private FileLock leaseLock;
+    private ScheduledExecutorService heartbeat;
+    private final Map<String, FileLock> partitionLocks = new HashMap<>();
+
+    private List<String> members = Collections.emptyList();
+    private final TreeMap<Integer, String> ring = new TreeMap<>();
+
+    /**
+     * @param directory The directory shared by all instances.
+     * @param instanceId The unique ID of this instance.
+     * @param leaseTimeout The time in milliseconds after which an instance without heartbeat is regarded as dead.
+     */
+    PartitionCoordinator(File directory, String instanceId, long leaseTimeout) {
+        this(directory, instanceId, leaseTimeout, TimeSource.SYSTEM);
+    }
+
+    /**
+     * Creates a coordinator whose heartbeats are timestamped with the given clock. The heartbeats are still sent
+     * in wall-clock intervals, so a virtual clock must keep pace with the system clock.
+     *
+     * @param time The clock the heartbeats are written and checked with.
+     * @see #PartitionCoordinator(File, String, long)
+     */
+    PartitionCoordinator(File directory, String instanceId, long leaseTimeout, TimeSource time) {
+        this.directory = directory;
+        this.instanceId = instanceId;
+        this.leaseTimeout = leaseTimeout;
+        this.time = time;
+        logger = Logger.getLogger("main");
+    }
+
+    String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * Creates and locks the lease file of this instance and starts sending heartbeats.
+     *
+     * @throws IOException If the lease file cannot be created or is locked by another instance with the same ID.
+     */
+    synchronized void join() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create coordination directory " + directory + ".");
+        }
+        File file = new File(directory, instanceId + LEASE_SUFFIX);
+
+        // Holding the directory lock keeps other instances from removing the new lease file before it is locked.
+        synchronized (LOCAL_LEASES) {
+            try (RandomAccessFile lockFile = new RandomAccessFile(new File(directory, DIRECTORY_LOCK_NAME), "rw");
+                 FileLock ignored = lockFile.getChannel().lock()) {
+                if (LOCAL_LEASES.contains(file.getName())) {
+                    throw new IOException("Instance " + instanceId + " is already running.");
+                }
+                leaseFile = new RandomAccessFile(file, "rw");
+                leaseLock = leaseFile.getChannel().tryLock();
+
+                if (leaseLock == null) {
+                    leaseFile.close();
+                    leaseFile = null;
+                    throw new IOException("Instance " + instanceId + " is already running.");
+                }
+                LOCAL_LEASES.add(file.getName());
+                writeHeartbeat();
+            }
+        }
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, leaseTimeout / 3);
+        heartbeat.scheduleAtFixedRate(this::writeHeartbeat, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the heartbeats, releases all partitions and removes the lease file, so the other instances take over
+     * immediately.
+     */
+    synchronized void leave() {
+        new ArrayList<>(partitionLocks.keySet()).forEach(this::release);
+
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+            heartbeat = null;
+        }
+
+        if (leaseFile != null) {
+            File file = new File(directory, instanceId + LEASE_SUFFIX);
+
+            try {
+                leaseLock.release();
+                leaseFile.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot release lease of instance " + instanceId + ".");
+            }
+            LOCAL_LEASES.remove(file.getName());
+            leaseFile = null;
+
+            if (!file.delete()) {
+                logger.log(Level.WARNING, "Cannot delete lease file " + file + ".");
+            }
+        }
+        members = Collections.emptyList();
+        ring.clear();
+    }
+
+    private synchronized void writeHeartbeat() {
+        if (leaseFile == null) {
+            return;
+        }
+
+        try {
+            leaseFile.seek(0);
+            leaseFile.writeLong(time.currentTimeMillis());
+            leaseFile.getChannel().force(false);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot write heartbeat of instance " + instanceId + ".");
+        }
+    }
+
+    /**
+     * Determines the live instances and rebuilds the partitions if they changed. Lease files of dead instances
+     * are removed.
+     *
+     * @return {@code true} if and only if the set of live instances changed.
+     * @throws IOException If the coordination directory cannot be read.
+     */
+    synchronized boolean refresh() throws IOException {
+        List<String> live = new ArrayList<>();
+        live.add(instanceId);
+
+        synchronized (LOCAL_LEASES) {
+            try (RandomAccessFile lockFile = new RandomAccessFile(new File(directory, DIRECTORY_LOCK_NAME), "rw");
+                 FileLock ignored = lockFile.getChannel().lock()) {
+                File[] leases = directory.listFiles((dir, name) -> name.endsWith(LEASE_SUFFIX));
+
+                if (leases == null) {
+                    throw new IOException("Cannot read coordination directory " + directory + ".");
+                }
+
+                for (File lease : leases) {
+                    String member = lease.getName().substring(0, lease.getName().length() - LEASE_SUFFIX.length());
+
+                    if (!member.equals(instanceId) && isAlive(lease)) {
+                        live.add(member);
+                    }
+                }
+            }
+        }
+        Collections.sort(live);
+
+        if (live.equals(members)) {
+            return false;
+        }
+        members = live;
+        ring.clear();
+
+        for (String member : members) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the instance of the given lease file is alive. Deletes the file if its instance died.
+     */
+    private boolean isAlive(File lease) throws IOException {
+        if (LOCAL_LEASES.contains(lease.getName())) {
+            return true;
+        }
+        long lastHeartbeat;
+
+        try (RandomAccessFile file = new RandomAccessFile(lease, "rw")) {
+            FileChannel channel = file.getChannel();
+            FileLock lock;
+
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+
+            if (lock != null) {
+                lock.release();
+                file.close();
+
+                if (lease.delete()) {
+                    logger.info("Removed lease file " + lease.getName() + " of a dead instance.");
+                }
+                return false;
+            }
+            lastHeartbeat = file.length() >= Long.BYTES ? file.readLong() : 0;
+        }
+        return time.currentTimeMillis() - lastHeartbeat <= leaseTimeout;
+    }
+
+    /**
+     * Gets the live instances found by the last {@link #refresh()}.
+     *
+     * @return The sorted instance IDs.
+     */
+    synchronized List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * Checks whether this instance is responsible for the servers of the given partition.
+     *
+     * @param partition The address of a PDU or the name of its group.
+     * @return {@code true} if and only if the partition is assigned to this instance.
+     */
+    synchronized boolean owns(String partition) {
+        if (ring.isEmpty()) {
+            return false;
+        }
+        Map.Entry<Integer, String> node = ring.ceilingEntry(hash(partition));
+
+        if (node == null) {
+            node = ring.firstEntry();
+        }
+        return node.getValue().equals(instanceId);
+    }
+
+    /**
+     * Locks a partition assigned to this instance. Fails as long as its previous owner still holds it.
+     *
+     * @param partition The address of a PDU or the name of its group.
+     * @return {@code true} if and only if this instance holds the lock of the partition.
+     * @throws IOException If the partition lock file cannot be opened.
+     */
+    synchronized boolean acquire(String partition) throws IOException {
+        if (partitionLocks.containsKey(partition)) {
+            return true;
+        }
+        File file = partitionLockFile(partition);
+
+        synchronized (LOCAL_PARTITIONS) {
+            if (LOCAL_PARTITIONS.contains(file.getName())) {
+                return false;
+            }
+            FileLock lock = tryLock(file);
+
+            if (lock == null) {
+                return false;
+            }
+            LOCAL_PARTITIONS.add(file.getName());
+            partitionLocks.put(partition, lock);
+            return true;
+        }
+    }
+
+    /**
+     * Releases a partition, so the instance it is assigned to can take it over.
+     *
+     * @param partition The address of a PDU or the name of its group.
+     */
+    synchronized void release(String partition) {
+        FileLock lock = partitionLocks.remove(partition);
+
+        if (lock == null) {
+            return;
+        }
+
+        synchronized (LOCAL_PARTITIONS) {
+            try {
+                lock.acquiredBy().close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot release partition " + partition + ".");
+            }
+            LOCAL_PARTITIONS.remove(partitionLockFile(partition).getName());
+        }
+    }
+
+    /**
+     * Checks whether another instance holds the lock of a partition.
+     *
+     * @param partition The address of a PDU or the name of its group.
+     * @return {@code true} if and only if the partition is locked by another instance.
+     * @throws IOException If the partition lock file cannot be opened.
+     */
+    synchronized boolean isLockedByOther(String partition) throws IOException {
+        if (partitionLocks.containsKey(partition)) {
+            return false;
+        }
+        File file = partitionLockFile(partition);
+
+        synchronized (LOCAL_PARTITIONS) {
+            if (LOCAL_PARTITIONS.contains(file.getName())) {
+                return true;
+            }
+            FileLock lock = tryLock(file);
+
+            if (lock == null) {
+                return true;
+            }
+            lock.acquiredBy().close();
+            return false;
+        }
+    }
+
+    /**
+     * Locks the given file without blocking. The file stays open if and only if the lock was acquired.
+     */
+    private static FileLock tryLock(File file) throws IOException {
+        RandomAccessFile lockFile = new RandomAccessFile(file, "rw");
+        FileLock lock;
+
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            lockFile.close();
+            throw e;
+        }
+
+        if (lock == null) {
+            lockFile.close();
+        }
+        return lock;
+    }
+
+    private File partitionLockFile(String partition) {
+        // Group names may contain any character, the hash keeps the sanitized names apart
+        String name = partition.replaceAll("[^A-Za-z0-9.-]", "_") + "-" + Integer.toHexString(hash(partition));
+        return new File(directory, PARTITION_LOCK_PREFIX + name + PARTITION_LOCK_SUFFIX);
+    }
+
+    private static int hash(String key) {
+        CRC32 crc = new CRC32();
+        crc.update(key.getBytes(StandardCharsets.UTF_8));
+        // CRC32 hardly changes in the upper bits for similar keys, so they are mixed before placing them on the ring.
+        int h = (int) crc.getValue();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+}
@@ -0,0 +1,182 @@
+import de.vandermeer.asciitable.AsciiTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the total power draw of every PDU and PDU group up to date.
+ *
+ * Each new reading of an outlet only adds its difference to the previous reading to the sums of its PDU and group,
+ * so the totals never have to be recomputed over the whole fleet.
+ */
+class PowerAggregator {
+
+    /**
+     * The sums of one PDU or PDU group.
+     */
+    private static class Aggregate {
+
+        final String name;
+        final String type;
+        long capacity;
+        long sum = 0;
+        long peak = 0;
+
+        Aggregate(String name, String type, long capacity) {
+            this.name = name;
+            this.type = type;
+            this.capacity = capacity;
+        }
+
+        void add(long delta) {
+            sum += delta;
+            peak = Math.max(peak, sum);
+        }
+
+        /**
+         * @return The remaining capacity in Watt, {@link Long#MAX_VALUE} if no capacity is configured.
+         */
+        long headroom() {
+            return capacity > 0 ? capacity - sum : Long.MAX_VALUE;
+        }
+    }
+
+    private final Map<String, Aggregate> pdus = new HashMap<>();
+    private final Map<String, Aggregate> groups = new HashMap<>();
+    private final Map<String, Aggregate> groupOfPdu = new HashMap<>();
+    private final List<Aggregate> aggregates = new ArrayList<>();
+
+    private int[] lastReadings = new int[0];
+    private Aggregate[] pduOfOutlet = new Aggregate[0];
+    private Aggregate[] groupOfOutlet = new Aggregate[0];
+    private int outlets = 0;
+
+    /**
+     * Configures the capacity and group of a PDU. PDUs that aren't configured are tracked without a capacity.
+     * The capacity of a group is the sum of the capacities of its PDUs.
+     *
+     * @param pduAddress The IPv4 of the PDU.
+     * @param group The name of the group, {@code null} if the PDU doesn't belong to one.
+     * @param capacity The maximum power the PDU may draw in Watt, 0 if unknown.
+     */
+    synchronized void configurePdu(String pduAddress, String group, long capacity) {
+        pdu(pduAddress).capacity = capacity;
+
+        if (group != null) {
+            Aggregate aggregate = groups.get(group);
+
+            if (aggregate == null) {
+                aggregate = new Aggregate(group, "Group", 0);
+                groups.put(group, aggregate);
+                aggregates.add(aggregate);
+            }
+            aggregate.capacity += capacity;
+            groupOfPdu.put(pduAddress, aggregate);
+        }
+    }
+
+    /**
+     * Adds an outlet whose readings count towards its PDU and the PDU's group.
+     *
+     * @param pduAddress The IPv4 of the outlet's PDU.
+     * @return The slot to pass the outlet's readings to.
+     */
+    synchronized int addOutlet(String pduAddress) {
+        if (outlets == lastReadings.length) {
+            int size = Math.max(16, outlets * 2);
+            lastReadings = Arrays.copyOf(lastReadings, size);
+            pduOfOutlet = Arrays.copyOf(pduOfOutlet, size);
+            groupOfOutlet = Arrays.copyOf(groupOfOutlet, size);
+        }
+        pduOfOutlet[outlets] = pdu(pduAddress);
+        groupOfOutlet[outlets] = groupOfPdu.get(pduAddress);
+        return outlets++;
+    }
+
+    private Aggregate pdu(String pduAddress) {
+        Aggregate aggregate = pdus.get(pduAddress);
+
+        if (aggregate == null) {
+            aggregate = new Aggregate(pduAddress, "PDU", 0);
+            pdus.put(pduAddress, aggregate);
+            aggregates.add(aggregate);
+        }
+        return aggregate;
+    }
+
+    /**
+     * Updates the sums with a new reading of an outlet.
+     *
+     * @param outlet The slot returned by {@link #addOutlet(String)}.
+     * @param powerUsage The power usage in Watt. {@link PowerPoller#NO_READING} keeps the previous reading.
+     */
+    synchronized void update(int outlet, int powerUsage) {
+        if (powerUsage == PowerPoller.NO_READING) {
+            return;
+        }
+        int delta = powerUsage - lastReadings[outlet];
+        lastReadings[outlet] = powerUsage;
+        pduOfOutlet[outlet].add(delta);
+
+        if (groupOfOutlet[outlet] != null) {
+            groupOfOutlet[outlet].add(delta);
+        }
+    }
+
+    /**
+     * Checks whether an outlet can draw the given power without exceeding the capacity of its PDU or group.
+     *
+     * @param outlet The slot returned by {@link #addOutlet(String)}.
+     * @param powerUsage The power in Watt the outlet is expected to draw.
+     * @return {@code true} if there is enough headroom or no capacity is configured.
+     */
+    synchronized boolean hasHeadroomFor(int outlet, int powerUsage) {
+        long needed = powerUsage - lastReadings[outlet];
+        Aggregate group = groupOfOutlet[outlet];
+        return pduOfOutlet[outlet].headroom() >= needed && (group == null || group.headroom() >= needed);
+    }
+
+    /**
+     * Reserves the given power for an outlet about to be switched on, if its PDU and group have enough headroom.
+     * The reservation counts as the outlet's reading until the next real reading replaces it, so outlets switched on
+     * before the next poll can't claim the same headroom.
+     *
+     * @param outlet The slot returned by {@link #addOutlet(String)}.
+     * @param powerUsage The power in Watt the outlet is expected to draw.
+     * @return {@code true} if the power was reserved, {@code false} if there is not enough headroom.
+     */
+    synchronized boolean reserve(int outlet, int powerUsage) {
+        if (!hasHeadroomFor(outlet, powerUsage)) {
+            return false;
+        }
+        update(outlet, powerUsage);
+        return true;
+    }
+
+    /**
+     * Returns the current draw, peak and headroom of all PDUs and groups as a table to print out.
+     *
+     * @return A formatted String.
+     */
+    synchronized String fetchContent() {
+        if (aggregates.isEmpty()) {
+            return "No PDUs added yet.";
+        }
+        AsciiTable table = new AsciiTable();
+        table.addRule();
+        table.addRow("Name", "Type", "Current W", "Peak W", "Capacity W", "Headroom W");
+        table.addRule();
+
+        for (Aggregate aggregate : aggregates) {
+            String capacity = aggregate.capacity > 0 ? String.valueOf(aggregate.capacity) : "-";
+            String headroom = aggregate.capacity > 0 ? String.valueOf(aggregate.headroom()) : "-";
+            table.addRow(aggregate.name, aggregate.type, aggregate.sum, aggregate.peak, capacity, headroom);
+        }
+        table.addRule();
+        return table.render();
+    }
+
+}
@@ -0,0 +1,174 @@
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls the power usage of all outlets of one PDU.
+ *
+ * The GET requests are built once when the outlets are added and reused for every poll, several outlets share one
+ * request. The readings are written into preallocated slots, unreachable outlets get {@link #NO_READING} instead of
+ * an exception, so handling the responses creates no garbage. Encoding, sending and decoding still allocate within
+ * the SNMP library.
+ */
+class PowerPoller {
+
+    /**
+     * The reading of an outlet whose PDU did not answer or which doesn't exist.
+     */
+    static final int NO_READING = -1;
+
+    /**
+     * Keeps the requests well below the maximum SNMPv1 message size of 484 bytes every agent has to accept.
+     */
+    static final int MAX_OUTLETS_PER_REQUEST = 8;
+
+    private final Snmp snmp;
+    private final String pduAddress;
+    private final CommunityTarget<Address> publicCommunity;
+    private final List<PDU> requests = new ArrayList<>();
+    private final List<int[]> requestSlots = new ArrayList<>();
+    private int[] readings = new int[0];
+    private int outlets = 0;
+    private final Logger logger;
+
+    /**
+     * @param snmp The SNMP session used to send the requests.
+     * @param pduAddress The IPv4 of the PDU.
+     */
+    PowerPoller(Snmp snmp, String pduAddress) {
+        this.snmp = snmp;
+        this.pduAddress = pduAddress;
+        publicCommunity = Server.createCommunity(pduAddress, Server.PUBLIC_COMMUNITY);
+        logger = Logger.getLogger("main");
+    }
+
+    /**
+     * Adds an outlet to the polled ones.
+     *
+     * @param pduIndex The index of the PDU within its bundle.
+     * @param outletNumber The number of the outlet.
+     * @return The slot the readings of the outlet are delivered to.
+     */
+    int addOutlet(int pduIndex, int outletNumber) {
+        int last = requests.size() - 1;
+
+        if (last < 0 || requests.get(last).size() == MAX_OUTLETS_PER_REQUEST) {
+            PDU request = new PDU();
+            request.setType(PDU.GET);
+            requests.add(request);
+            requestSlots.add(new int[0]);
+            last++;
+        }
+        requests.get(last).add(new VariableBinding(new OID(Server.powerOid(pduIndex, outletNumber))));
+        int[] slots = Arrays.copyOf(requestSlots.get(last), requestSlots.get(last).length + 1);
+        slots[slots.length - 1] = outlets;
+        requestSlots.set(last, slots);
+
+        if (outlets == readings.length) {
+            readings = Arrays.copyOf(readings, Math.max(MAX_OUTLETS_PER_REQUEST, readings.length * 2));
+        }
+        readings[outlets] = NO_READING;
+        return outlets++;
+    }
+
+    /**
+     * Fetches the current power usage of all outlets. Blocks until every request is answered or timed out.
+     */
+    void poll() {
+        for (int i = 0; i < requests.size(); i++) {
+            PDU request = requests.get(i);
+            boolean delivered = false;
+
+            while (!delivered && request.size() > 0) {
+                // The session assigns a fresh ID to requests with ID 0. IDs unique across all PDUs polled via the same
+                // session keep late answers to a previous poll from being taken for answers to this one.
+                request.getRequestID().setValue(0);
+                PDU response = null;
+
+                try {
+                    ResponseEvent<Address> responseEvent = snmp.send(request, publicCommunity);
+                    response = responseEvent.getResponse();
+                } catch (IOException ignored) {
+
+                }
+                delivered = deliver(i, response);
+            }
+        }
+    }
+
+    /**
+     * Writes the readings of a response into the slots of its request.
+     *
+     * In SNMPv1 a single unknown OID fails the whole request with {@code noSuchName}. The outlet it names is then
+     * dropped from the request for good, keeps {@link #NO_READING} and the request has to be sent again, so one
+     * misconfigured outlet doesn't stop the readings of the others sharing its request.
+     *
+     * @param requestIndex The index of the answered request.
+     * @param response The response or {@code null} if the request timed out.
+     * @return {@code false} if an outlet was dropped and the request has to be sent again.
+     */
+    boolean deliver(int requestIndex, PDU response) {
+        PDU request = requests.get(requestIndex);
+        int[] slots = requestSlots.get(requestIndex);
+
+        if (response != null && response.getErrorStatus() == PDU.noSuchName
+                && response.getErrorIndex() >= 1 && response.getErrorIndex() <= slots.length) {
+            dropOutlet(requestIndex, response.getErrorIndex() - 1);
+            return false;
+        }
+
+        if (response == null || response.getErrorStatus() != 0 || response.size() != slots.length) {
+            for (int slot : slots) {
+                readings[slot] = NO_READING;
+            }
+            return true;
+        }
+
+        for (int i = 0; i < slots.length; i++) {
+            Variable variable = response.get(i).getVariable();
+            readings[slots[i]] = variable.isException() ? NO_READING : variable.toInt();
+        }
+        return true;
+    }
+
+    private void dropOutlet(int requestIndex, int binding) {
+        PDU request = requests.get(requestIndex);
+        int[] slots = requestSlots.get(requestIndex);
+        logger.log(Level.WARNING, "PDU " + pduAddress + " doesn't know " + request.get(binding).getOid()
+                + ", its outlet isn't polled anymore.");
+        readings[slots[binding]] = NO_READING;
+        request.remove(binding);
+
+        int[] remaining = new int[slots.length - 1];
+        System.arraycopy(slots, 0, remaining, 0, binding);
+        System.arraycopy(slots, binding + 1, remaining, binding, remaining.length - binding);
+        requestSlots.set(requestIndex, remaining);
+    }
+
+    /**
+     * Gets the power usage of an outlet read by the last poll.
+     *
+     * @param slot The slot returned by {@link #addOutlet(int, int)}.
+     * @return The power usage in Watt or {@link #NO_READING}.
+     */
+    int getReading(int slot) {
+        return readings[slot];
+    }
+
+    int getRequestCount() {
+        return requests.size();
+    }
+
+}
@@ -1,4 +1,3 @@
-import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
@@ -18,7 +17,17 @@ import org.snmp4j.smi.UdpAddress;
 import org.snmp4j.smi.VariableBinding;
 import org.snmp4j.transport.DefaultUdpTransportMapping;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,7 +37,7 @@ import java.util.logging.Logger;
 public class Server {
 
     // CONSTANTS
-    private static final String PUBLIC_COMMUNITY = "public";
+    static final String PUBLIC_COMMUNITY = "public";
     private static final String PRIVATE_COMMUNITY = "private";
     private static final int POWER_OFF = 1;
     private static final int POWER_ON = 0;
@@ -40,6 +49,8 @@ public class Server {
     private static final int sshPort = 22;
     private static final int SSH_TIMEOUT = 10000;
     private static final String RESTART_COMMAND = "sudo shutdown -r now";
+    private static final int REBOOT_TIMEOUT = 5000; // milliseconds
+    private static final int OUTPUT_POLL_INTERVAL = 50; // milliseconds
 
     // Class parameters
     private final CommunityTarget<Address> publicCommunity;
@@ -49,7 +60,7 @@ public class Server {
     public final String id;
     public final String ip;
 
-    private final String pduAddress;
+    public final String pduAddress;
     public final int pduIndex;
     public final int pduOutletNumber;
 
@@ -63,6 +74,14 @@ public class Server {
 
     private int restartTries = 0;
     private ServerStatus status;
+    private Set<String> tags = Collections.emptySet();
+    private List<String> drainCommands = Collections.emptyList();
+    private long drainTimeout;
+    private String rebootCommand = RESTART_COMMAND;
+    private PowerAggregator powerAggregator;
+    private int powerSlot;
+    private volatile boolean powerOnDeferred = false;
+    private TimeSource time = TimeSource.SYSTEM;
 
     private final Logger logger;
 
@@ -84,6 +103,17 @@ public class Server {
      */
     public Server(String id, String ip, String pduAddress, int pduIndex, int pduOutletNumber, int triggerMinPower,
                   String keyFilePath, boolean controlActive) throws IOException, JSchException {
+        this(id, ip, pduAddress, pduIndex, pduOutletNumber, triggerMinPower, keyFilePath, controlActive, createSnmp());
+    }
+
+    /**
+     * Creates a new server instance using a shared SNMP session.
+     *
+     * @param snmp The SNMP session, which may be shared with other servers.
+     * @see #Server(String, String, String, int, int, int, String, boolean)
+     */
+    Server(String id, String ip, String pduAddress, int pduIndex, int pduOutletNumber, int triggerMinPower,
+           String keyFilePath, boolean controlActive, Snmp snmp) throws JSchException {
         this.id = id;
         this.ip = ip;
         this.pduAddress = pduAddress;
@@ -96,15 +126,11 @@ public class Server {
         } else {
             status = ServerStatus.running;
         }
-        publicCommunity = createCommunity(PUBLIC_COMMUNITY);
-        privateCommunity = createCommunity(PRIVATE_COMMUNITY);
-        TransportMapping<UdpAddress> transport = new DefaultUdpTransportMapping();
-        snmp = new Snmp(transport);
-        transport.listen();
-        final String powerOid = String.format("1.3.6.1.4.1.2.%d.3.%d.2.0", pduIndex, pduOutletNumber);
-        final String switchOid = String.format("1.3.6.1.4.1.2.%d.3.%d.4.0", pduIndex, pduOutletNumber);
-        getPowerOid = new OID(powerOid);
-        setSwitchOid = new OID(switchOid);
+        publicCommunity = createCommunity(pduAddress, PUBLIC_COMMUNITY);
+        privateCommunity = createCommunity(pduAddress, PRIVATE_COMMUNITY);
+        this.snmp = snmp;
+        getPowerOid = new OID(powerOid(pduIndex, pduOutletNumber));
+        setSwitchOid = new OID(String.format("1.3.6.1.4.1.2.%d.3.%d.4.0", pduIndex, pduOutletNumber));
         jSch = new JSch();
         sshIsViaKey = !keyFilePath.isEmpty();
 
@@ -114,7 +140,24 @@ public class Server {
         logger = Logger.getLogger("main");
     }
 
-    private CommunityTarget<Address> createCommunity(String communityName) {
+    /**
+     * Creates a SNMP session listening on a new UDP port.
+     *
+     * @return The session.
+     * @throws IOException Thrown when creating streams for the SNMP protocol.
+     */
+    static Snmp createSnmp() throws IOException {
+        TransportMapping<UdpAddress> transport = new DefaultUdpTransportMapping();
+        Snmp snmp = new Snmp(transport);
+        transport.listen();
+        return snmp;
+    }
+
+    static String powerOid(int pduIndex, int pduOutletNumber) {
+        return String.format("1.3.6.1.4.1.2.%d.3.%d.2.0", pduIndex, pduOutletNumber);
+    }
+
+    static CommunityTarget<Address> createCommunity(String pduAddress, String communityName) {
         CommunityTarget<Address> community = new CommunityTarget<>();
         community.setCommunity(new OctetString(communityName));
         community.setAddress(GenericAddress.parse("udp:" + pduAddress + "/161"));
@@ -125,44 +168,47 @@ public class Server {
     }
 
     /**
-     * Checks the status of the server depending.
+     * Checks the status of the server depending on a power reading.
      * Restarts if:
      * - multiple restarts have not already failed.
      * - the server is not in maintenance mode.
      * - the power consumption is lower than the set threshold {@link #triggerMinPower}.
      *
      * First a soft restart via SSH is tried, if that fails a hard restart by turning the power off and on again.
+     *
+     * @param powerUsage The current power usage in Watt or {@link PowerPoller#NO_READING} if the PDU didn't answer.
      */
-    void checkStatus() {
-        if (status != ServerStatus.failedRestarts && status != ServerStatus.maintenance) {
-            int powerUsage = -1;
-
-            try {
-                powerUsage = fetchPowerUsage();
-            } catch (RuntimeException e) {
-                logger.log(Level.SEVERE, e.getMessage());
-            } catch (IOException e) {
+    void checkStatus(int powerUsage) {
+        if (needsCheck()) {
+            if (powerUsage == PowerPoller.NO_READING) {
                 logger.log(Level.SEVERE, "PDU of server " + id + " unreachable.");
+                return;
             }
+            logger.info("Server " + id + " only pulls " + powerUsage + "W.");
 
-            if (powerUsage >= 0) {
-                logger.info("Server " + id + " only pulls " + powerUsage + "W.");
-
-                if (powerUsage <= POWER_THRESHOLD_SERVER_OFF) {
-                    try {
-                        hardRestart(true);
-                    } catch (IOException e) {
-                        logger.log(Level.SEVERE, "PDU of server " + id + " unreachable.");
-                    }
-                } else if (powerUsage < triggerMinPower) {
-                    flagRestart();
-                } else {
-                    restartTries = 0;
+            if (powerUsage <= POWER_THRESHOLD_SERVER_OFF) {
+                try {
+                    hardRestart(true);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "PDU of server " + id + " unreachable.");
                 }
+            } else if (powerUsage < triggerMinPower) {
+                flagRestart();
+            } else {
+                restartTries = 0;
             }
         }
     }
 
+    /**
+     * Whether the status checker has to look at the server at all.
+     *
+     * @return {@code false} if the server is in maintenance mode or multiple restarts have already failed.
+     */
+    boolean needsCheck() {
+        return status != ServerStatus.failedRestarts && status != ServerStatus.maintenance;
+    }
+
     private void flagRestart() {
         if (status == ServerStatus.inactive) {
             if (restartTries < 3) {
@@ -193,62 +239,249 @@ public class Server {
     }
 
     /**
-     * Tries to restart the server via SSH.
+     * Tries to restart the server via SSH. The configured drain commands are run first, a failing drain command
+     * doesn't stop the restart. The reboot command is the last step.
      *
-     * @return Returns {@code true} if a ssh connection was established.
+     * @return Returns {@code true} if a ssh connection was established and the reboot command didn't fail.
      */
     public boolean softRestart() {
         logger.log(Level.INFO, "Server " + id + " tries to soft restart.");
         boolean success = false;
         Session ssh = null;
-        Channel channel = null;
 
         try {
-            ssh = jSch.getSession(Parameters.sshUser, ip, sshPort);
+            ssh = openSession();
 
-            if (!sshIsViaKey) {
-                ssh.setPassword(Parameters.sshPassphrase);
+            for (String drainCommand : drainCommands) {
+                CommandResult result = execute(ssh, drainCommand, drainTimeout,
+                        line -> logger.info("Server " + id + ": " + line));
+
+                if (!result.succeeded()) {
+                    logger.log(Level.WARNING, "Drain command \"" + drainCommand + "\" of server " + id + " failed: "
+                            + result.describe() + ".");
+                }
             }
-            java.util.Properties config = new java.util.Properties();
-            config.put("StrictHostKeyChecking", "no");
-            ssh.setConfig(config);
-            ssh.connect(SSH_TIMEOUT);
-            channel = ssh.openChannel("exec");
-            ((ChannelExec) channel).setCommand(RESTART_COMMAND);
-            channel.setInputStream(null);
-            ((ChannelExec) channel).setErrStream(System.err);
-            channel.connect();
-            success = true;
-        } catch (JSchException e) {
+            success = reboot(ssh);
+        } catch (JSchException | IOException e) {
             logger.info("Server " + id + "doesn't respond.");
         } finally {
             if (ssh != null) {
                 ssh.disconnect();
             }
+        }
+        return success;
+    }
+
+    /**
+     * Runs the reboot command. The server usually drops the connection before the command exits, so a closed
+     * connection or a timeout count as success, only a non-zero exit status as failure.
+     */
+    private boolean reboot(Session ssh) throws JSchException {
+        CommandResult result;
 
-            if (channel != null) {
-                channel.disconnect();
+        try {
+            result = execute(ssh, rebootCommand, REBOOT_TIMEOUT, line -> logger.info("Server " + id + ": " + line));
+        } catch (IOException e) {
+            return true;
+        }
+
+        if (result.exitStatus > 0) {
+            logger.log(Level.WARNING, "Reboot command of server " + id + " failed: " + result.describe() + ".");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Executes a command on the server via SSH and waits for it to finish.
+     *
+     * @param command The command to execute.
+     * @param timeout The time in milliseconds after which the command is aborted.
+     * @param outputListener Receives every line of stdout and stderr as soon as it is read.
+     * @return The exit status and the complete output of the command.
+     */
+    CommandResult execute(String command, long timeout, Consumer<String> outputListener) {
+        Session ssh = null;
+
+        try {
+            ssh = openSession();
+            return execute(ssh, command, timeout, outputListener);
+        } catch (JSchException | IOException e) {
+            return new CommandResult(ssh != null && ssh.isConnected(), false, CommandResult.NO_EXIT_STATUS, "");
+        } finally {
+            if (ssh != null) {
+                ssh.disconnect();
             }
         }
-        return success;
+    }
+
+    private CommandResult execute(Session ssh, String command, long timeout, Consumer<String> outputListener)
+            throws JSchException, IOException {
+        ChannelExec channel = (ChannelExec) ssh.openChannel("exec");
+
+        try {
+            channel.setCommand(command);
+            channel.setInputStream(null);
+            InputStream out = channel.getInputStream();
+            InputStream err = channel.getErrStream();
+            channel.connect(SSH_TIMEOUT);
+
+            long deadline = time.currentTimeMillis() + timeout;
+            StringBuilder output = new StringBuilder();
+            ByteArrayOutputStream outLine = new ByteArrayOutputStream();
+            ByteArrayOutputStream errLine = new ByteArrayOutputStream();
+            boolean timedOut = false;
+
+            while (true) {
+                boolean read = readAvailable(out, outLine, output, outputListener);
+                read |= readAvailable(err, errLine, output, outputListener);
+
+                if (channel.isClosed() && out.available() == 0 && err.available() == 0) {
+                    break;
+                } else if (time.currentTimeMillis() > deadline) {
+                    timedOut = true;
+                    break;
+                } else if (!read) {
+                    try {
+                        time.sleep(OUTPUT_POLL_INTERVAL);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        timedOut = true;
+                        break;
+                    }
+                }
+            }
+            flushLine(outLine, output, outputListener);
+            flushLine(errLine, output, outputListener);
+            int exitStatus = timedOut ? CommandResult.NO_EXIT_STATUS : channel.getExitStatus();
+            return new CommandResult(true, timedOut, exitStatus, output.toString());
+        } finally {
+            channel.disconnect();
+        }
+    }
+
+    /**
+     * Reads the available bytes of a stream and passes on every completed line.
+     *
+     * @return {@code true} if anything was read.
+     */
+    static boolean readAvailable(InputStream in, ByteArrayOutputStream line, StringBuilder output,
+                                 Consumer<String> outputListener) throws IOException {
+        boolean read = false;
+
+        while (in.available() > 0) {
+            int c = in.read();
+
+            if (c < 0) {
+                break;
+            }
+            read = true;
+
+            if (c == '\n') {
+                flushLine(line, output, outputListener);
+            } else if (c != '\r') {
+                line.write(c);
+            }
+        }
+        return read;
+    }
+
+    private static void flushLine(ByteArrayOutputStream line, StringBuilder output, Consumer<String> outputListener) {
+        if (line.size() > 0) {
+            String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+            output.append(text).append('\n');
+            outputListener.accept(text);
+            line.reset();
+        }
+    }
+
+    private Session openSession() throws JSchException {
+        Session ssh = jSch.getSession(Parameters.sshUser, ip, sshPort);
+
+        if (!sshIsViaKey) {
+            ssh.setPassword(Parameters.sshPassphrase);
+        }
+        java.util.Properties config = new java.util.Properties();
+        config.put("StrictHostKeyChecking", "no");
+        ssh.setConfig(config);
+        ssh.connect(SSH_TIMEOUT);
+        return ssh;
+    }
+
+    /**
+     * Restarts the server by turning the power off and on again.
+     * If the PDU or its group lack the headroom for the server's minimum power, the power stays off and is turned on
+     * by a later check cycle via {@link #retryPowerOn()}.
+     *
+     * @param longWait Whether we should wait longer for all power to run out.
+     * @return {@code true} if the power was turned on again, {@code false} if powering on was deferred.
+     * @throws IOException If the connection to the PDU fails.
+     * @see #hardRestart(boolean, boolean)
+     */
+    public boolean hardRestart(boolean longWait) throws IOException {
+        return hardRestart(longWait, true);
     }
 
     /**
      * Restarts the server by turning the power off and on again.
+     * If the waiting thread is interrupted the power is turned on right away and the interrupt is kept for the caller.
      *
      * @param longWait Whether we should wait longer for all power to run out.
+     * @param deferPowerOn Whether a check cycle is running to power on the server later if there is no headroom.
+     *                     Otherwise the headroom is reserved before the power is turned off, and the server isn't
+     *                     restarted at all if there is none.
+     * @return {@code true} if the power was turned on again, {@code false} if powering on was deferred or, without
+     * deferring, the restart was refused.
      * @throws IOException If the connection to the PDU fails.
      */
-    public void hardRestart(boolean longWait) throws IOException {
+    public boolean hardRestart(boolean longWait, boolean deferPowerOn) throws IOException {
+        if (!deferPowerOn && powerAggregator != null && !powerAggregator.reserve(powerSlot, triggerMinPower)) {
+            logger.log(Level.WARNING, "PDU of server " + id + " has no headroom left, not restarting.");
+            return false;
+        }
         int waitingDuration = longWait ? EXTENDED_WAITING_DURATION : WAITING_DURATION;
         logger.log(Level.INFO, "Server " + id + " hard restarts.");
         switchPower(POWER_OFF);
 
+        if (deferPowerOn && powerAggregator != null) {
+            powerAggregator.update(powerSlot, 0);
+        }
+
         try {
-            Thread.sleep(waitingDuration * 1000L);
-        } catch (InterruptedException ignored) {
+            time.sleep(waitingDuration * 1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!deferPowerOn) {
+            switchPower(POWER_ON);
+            return true;
+        }
+        return powerOn();
+    }
+
+    /**
+     * Turns on the power of a server whose power on was deferred, if there is enough headroom by now.
+     *
+     * @throws IOException If the connection to the PDU fails.
+     */
+    void retryPowerOn() throws IOException {
+        if (powerOnDeferred && powerOn()) {
+            logger.info("Server " + id + " powered on after waiting for headroom.");
+        }
+    }
+
+    private boolean powerOn() throws IOException {
+        if (powerAggregator != null && !powerAggregator.reserve(powerSlot, triggerMinPower)) {
+            if (!powerOnDeferred) {
+                logger.log(Level.WARNING, "PDU of server " + id + " has no headroom left, deferring power on.");
+            }
+            powerOnDeferred = true;
+            return false;
         }
         switchPower(POWER_ON);
+        powerOnDeferred = false;
+        return true;
     }
 
     private void switchPower(int value) throws IOException {
@@ -261,7 +494,7 @@ public class Server {
     /**
      * Fetches the current power usage of the server.
      *
-     * @return The power usage in Watt.
+     * @return The power usage in Watt or {@link PowerPoller#NO_READING} if the PDU didn't answer.
      * @throws IOException  If the connection to the PDU fails.
      */
     public int fetchPowerUsage() throws IOException {
@@ -274,7 +507,73 @@ public class Server {
         if (response != null) {
             return response.get(0).getVariable().toInt();
         }
-        throw new RuntimeException("PDU of server " + id + " unreachable.");
+        return PowerPoller.NO_READING;
+    }
+
+    /**
+     * Sets the tags the server can be selected by in batch commands.
+     *
+     * @param tags The configured tags.
+     */
+    void setTags(Collection<String> tags) {
+        this.tags = new HashSet<>(tags);
+    }
+
+    /**
+     * Sets the commands run via SSH before a soft restart, e.g. to stop services or flush caches.
+     *
+     * @param drainCommands The commands in the order they are run.
+     * @param timeout The time in milliseconds after which a drain command is aborted.
+     */
+    void setDrainCommands(List<String> drainCommands, long timeout) {
+        this.drainCommands = new ArrayList<>(drainCommands);
+        this.drainTimeout = timeout;
+    }
+
+    /**
+     * Sets the command run via SSH after the drain commands to reboot the server.
+     *
+     * @param rebootCommand The command, {@code sudo shutdown -r now} by default.
+     */
+    void setRebootCommand(String rebootCommand) {
+        this.rebootCommand = rebootCommand;
+    }
+
+    /**
+     * Sets the aggregator tracking the power draw of the server's PDU. It is consulted before powering on again.
+     *
+     * @param powerAggregator The aggregator.
+     * @param powerSlot The slot of the server's outlet within the aggregator.
+     */
+    void setPowerAggregator(PowerAggregator powerAggregator, int powerSlot) {
+        this.powerAggregator = powerAggregator;
+        this.powerSlot = powerSlot;
+    }
+
+    /**
+     * Sets the clock used for waiting during hard restarts and for the timeouts of commands.
+     *
+     * @param time The clock.
+     */
+    void setTimeSource(TimeSource time) {
+        this.time = time;
+    }
+
+    int getPowerSlot() {
+        return powerSlot;
+    }
+
+    /**
+     * Whether the server was switched off by a hard restart and waits for headroom to be switched on again.
+     *
+     * @return {@code true} if powering on was deferred.
+     */
+    boolean isPowerOnDeferred() {
+        return powerOnDeferred;
+    }
+
+    boolean hasTag(String tag) {
+        return tags.contains(tag);
     }
 
     /**
@@ -286,4 +585,31 @@ public class Server {
         return status;
     }
 
+    /**
+     * Gets the number of restarts since the server last drew enough power.
+     *
+     * @return The number of restart tries.
+     */
+    int getRestartTries() {
+        return restartTries;
+    }
+
+    /**
+     * Restores the state saved by a previous manager. Servers configured for maintenance stay in maintenance and
+     * a saved maintenance status is dropped if the server is no longer configured for it.
+     *
+     * A deferred power on is always restored, the server is still switched off.
+     *
+     * @param savedStatus The saved status.
+     * @param savedRestartTries The saved number of restart tries.
+     * @param savedPowerOnDeferred Whether the server was waiting for headroom to be powered on again.
+     */
+    void restoreState(ServerStatus savedStatus, int savedRestartTries, boolean savedPowerOnDeferred) {
+        if (status != ServerStatus.maintenance && savedStatus != ServerStatus.maintenance) {
+            status = savedStatus;
+            restartTries = savedRestartTries;
+        }
+        powerOnDeferred |= savedPowerOnDeferred;
+    }
+
 }
\ No newline at end of file
@@ -4,14 +4,23 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
+import org.snmp4j.Snmp;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,17 +30,63 @@ import java.util.logging.Logger;
 public class ServerManager {
 
     private final Map<String, Server> servers = new HashMap<>();
+    private final Map<String, PowerPoller> pollers = new HashMap<>();
+    private final Map<String, List<Server>> polledServers = new HashMap<>();
+    private final PowerAggregator powerAggregator = new PowerAggregator();
     private static final String CONFIG_FILE_NAME = "config.txt";
+    private static final String STATE_FILE_NAME = "state.bin";
+    private static final String STATE_FILE_SUFFIX = ".state";
+    private static final int DEFAULT_BATCH_PARALLELISM = 16;
+    private static final int DEFAULT_LEASE_TIMEOUT = 30; // seconds
+    private static final int DEFAULT_COMMAND_TIMEOUT = 60; // seconds
+    private static final int STATE_FILE_RETENTION_FACTOR = 10;
 
     private int checkInterval;
+    private int batchParallelism = DEFAULT_BATCH_PARALLELISM;
+    private long commandTimeout = DEFAULT_COMMAND_TIMEOUT * 1000L;
+    private final Map<String, String> commands = new HashMap<>();
 
     Thread checkCycle;
+    private volatile boolean stopped = false;
+    private long cycles = 0;
+
+    private StateSnapshot snapshot = new StateSnapshot(new File(STATE_FILE_NAME));
+
+    private PartitionCoordinator coordinator;
+    private File coordinationDirectory;
+    private long leaseTimeout = DEFAULT_LEASE_TIMEOUT * 1000L;
+    private final Set<String> ownedServers = new HashSet<>();
+    private final Set<String> ownedPdus = new HashSet<>();
+    private final Set<String> handedOffServers = new HashSet<>();
+    private Set<String> takenOverPartitions = new HashSet<>();
+    private final Map<String, String> pduGroups = new HashMap<>();
+
+    private TimeSource time = TimeSource.SYSTEM;
 
     private final Logger logger;
 
     public ServerManager() throws ParseException, JSchException, IOException {
         logger = Logger.getLogger("main");
         readConfig();
+        restoreState(server -> true);
+    }
+
+    /**
+     * Creates a manager for the given servers without reading the config file, e.g. for simulations.
+     *
+     * @param servers The servers to manage.
+     * @param snmp The SNMP session used to poll the PDUs.
+     * @param checkInterval The time in seconds to be waited within server activity checks.
+     * @param stateFile The file the state snapshots are written to.
+     * @param time The clock used for waiting and for timestamping the snapshots.
+     */
+    ServerManager(List<Server> servers, Snmp snmp, int checkInterval, File stateFile, TimeSource time) {
+        logger = Logger.getLogger("main");
+        this.checkInterval = checkInterval;
+        this.snapshot = new StateSnapshot(stateFile, time);
+        this.time = time;
+        servers.forEach(server -> this.servers.put(server.id, server));
+        registerServers(snmp);
     }
 
     private void readConfig() throws IOException, ParseException {
@@ -49,7 +104,51 @@ public class ServerManager {
         if (configReader != null) {
             JSONObject json = (JSONObject) parser.parse(new FileReader(CONFIG_FILE_NAME));
             checkInterval = ((Long) json.get("checkIntervalInSeconds")).intValue();
+
+            if (json.containsKey("batchParallelism")) {
+                batchParallelism = ((Long) json.get("batchParallelism")).intValue();
+            }
+
+            if (json.containsKey("commandTimeoutInSeconds")) {
+                commandTimeout = ((Long) json.get("commandTimeoutInSeconds")) * 1000L;
+            }
+
+            if (json.containsKey("commands")) {
+                commands.putAll((Map<String, String>) json.get("commands"));
+            }
+            List<String> drainCommands = new ArrayList<>();
+
+            if (json.containsKey("drainCommands")) {
+                for (String drainCommand : (List<String>) json.get("drainCommands")) {
+                    drainCommands.add(resolveCommand(drainCommand));
+                }
+            }
+            final String rebootCommand = json.containsKey("rebootCommand")
+                    ? resolveCommand((String) json.get("rebootCommand")) : null;
+
+            if (json.containsKey("leaseTimeoutInSeconds")) {
+                leaseTimeout = ((Long) json.get("leaseTimeoutInSeconds")) * 1000L;
+            }
+
+            if (json.containsKey("coordinationDirectory")) {
+                coordinationDirectory = new File((String) json.get("coordinationDirectory"));
+                String instanceId = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9._-]", "_");
+                coordinator = new PartitionCoordinator(coordinationDirectory, instanceId, leaseTimeout, time);
+                snapshot = new StateSnapshot(new File(coordinationDirectory, instanceId + STATE_FILE_SUFFIX), time);
+            }
+            if (json.containsKey("pdus")) {
+                for (JSONObject jsonPdu : (Iterable<JSONObject>) json.get("pdus")) {
+                    final Long capacity = (Long) jsonPdu.get("capacityWatts");
+
+                    if (jsonPdu.get("group") != null) {
+                        pduGroups.put((String) jsonPdu.get("ip"), (String) jsonPdu.get("group"));
+                    }
+                    powerAggregator.configurePdu((String) jsonPdu.get("ip"), (String) jsonPdu.get("group"),
+                            capacity == null ? 0 : capacity);
+                }
+            }
             JSONArray jsonServers = (JSONArray) json.get("servers");
+            Snmp snmp = Server.createSnmp();
 
             for (JSONObject jsonServer : (Iterable<JSONObject>) jsonServers) {
                 final String id = (String) jsonServer.get("id");
@@ -62,12 +161,279 @@ public class ServerManager {
                 final boolean controlActive = (boolean) jsonServer.get("controlActive");
 
                 try {
-                    final Server server = new Server(id, ip, pduAddress, pduIndex, pduOutletNumber, triggerMinPower, keyFilePath, controlActive);
+                    final Server server = new Server(id, ip, pduAddress, pduIndex, pduOutletNumber, triggerMinPower, keyFilePath,
+                            controlActive, snmp);
+                    JSONArray tags = (JSONArray) jsonServer.get("tags");
+
+                    if (tags != null) {
+                        server.setTags((List<String>) tags);
+                    }
+                    server.setDrainCommands(drainCommands, commandTimeout);
+
+                    if (rebootCommand != null) {
+                        server.setRebootCommand(rebootCommand);
+                    }
                     servers.put(id, server);
                 } catch (JSchException e) {
                     logger.log(Level.SEVERE, "Invalid keyFile or passphrase for server " + id + ".");
                 }
             }
+            registerServers(snmp);
+        }
+    }
+
+    /**
+     * Assigns the loaded servers to the pollers of their PDUs and to the power aggregator.
+     */
+    private void registerServers(Snmp snmp) {
+        servers.forEach((k, v) -> {
+            PowerPoller poller = pollers.computeIfAbsent(v.pduAddress, address -> new PowerPoller(snmp, address));
+            poller.addOutlet(v.pduIndex, v.pduOutletNumber);
+            polledServers.computeIfAbsent(v.pduAddress, address -> new ArrayList<>()).add(v);
+            v.setPowerAggregator(powerAggregator, powerAggregator.addOutlet(v.pduAddress));
+        });
+    }
+
+    /**
+     * Applies the state snapshot of the previous manager to the loaded servers, so flagged servers and their
+     * restart tries survive a crash, redeploy or reload.
+     * When coordinating with other instances the snapshots of all instances are merged, the newest one wins.
+     *
+     * @param filter Selects the servers to restore.
+     */
+    private void restoreState(Predicate<Server> filter) {
+        List<StateSnapshot> snapshots = new ArrayList<>();
+
+        if (coordinator == null) {
+            snapshots.add(new StateSnapshot(new File(STATE_FILE_NAME)));
+        } else {
+            File[] stateFiles = coordinationDirectory.listFiles((dir, name) -> name.endsWith(STATE_FILE_SUFFIX));
+
+            if (stateFiles != null) {
+                for (File stateFile : stateFiles) {
+                    snapshots.add(new StateSnapshot(stateFile));
+                }
+            }
+        }
+        Map<StateSnapshot, Map<String, StateSnapshot.Entry>> loaded = new HashMap<>();
+
+        for (StateSnapshot stateSnapshot : snapshots) {
+            try {
+                loaded.put(stateSnapshot, stateSnapshot.load());
+                stateSnapshot.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot read state file, starting with a clean state.");
+            }
+        }
+        snapshots.sort(Comparator.comparingLong(StateSnapshot::getTimestamp));
+        Set<String> restored = new HashSet<>();
+
+        for (StateSnapshot stateSnapshot : snapshots) {
+            loaded.getOrDefault(stateSnapshot, new HashMap<>()).forEach((id, entry) -> {
+                Server server = servers.get(id);
+
+                if (server != null && filter.test(server)) {
+                    server.restoreState(entry.status, entry.restartTries, entry.powerOnDeferred);
+                    restored.add(id);
+                }
+            });
+        }
+
+        if (!restored.isEmpty()) {
+            logger.info("Restored state of " + restored.size() + " servers.");
+        }
+    }
+
+    private void saveState() {
+        try {
+            if (coordinator == null) {
+                snapshot.write(servers.values());
+            } else {
+                snapshot.write(persistedServers());
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot write state file.");
+        }
+    }
+
+    private synchronized Collection<Server> ownedServers() {
+        List<Server> owned = new ArrayList<>();
+        ownedServers.forEach(id -> owned.add(servers.get(id)));
+        return owned;
+    }
+
+    /**
+     * Gets the owned servers and those handed off to another instance which might not have restored their state yet.
+     */
+    private synchronized Collection<Server> persistedServers() {
+        Collection<Server> persisted = ownedServers();
+        handedOffServers.forEach(id -> persisted.add(servers.get(id)));
+        return persisted;
+    }
+
+    private synchronized boolean ownsPdu(String pduAddress) {
+        return coordinator == null || ownedPdus.contains(pduAddress);
+    }
+
+    /**
+     * Polls every PDU with servers to check once and hands the readings to its servers.
+     * Servers waiting for headroom to be powered on again are powered on instead of being checked. Their PDUs are
+     * polled even if another instance owns them, but only the servers of owned PDUs are checked.
+     */
+    void checkServers() {
+        pollers.forEach((pduAddress, poller) -> {
+            List<Server> polled = polledServers.get(pduAddress);
+            boolean owned = ownsPdu(pduAddress);
+            boolean checkNeeded = false;
+            boolean powerOnDeferred = false;
+
+            for (int slot = 0; slot < polled.size(); slot++) {
+                checkNeeded |= polled.get(slot).needsCheck();
+                powerOnDeferred |= polled.get(slot).isPowerOnDeferred();
+            }
+
+            if ((checkNeeded && owned) || powerOnDeferred) {
+                poller.poll();
+
+                for (int slot = 0; slot < polled.size(); slot++) {
+                    Server server = polled.get(slot);
+                    powerAggregator.update(server.getPowerSlot(), poller.getReading(slot));
+
+                    if (owned && !server.isPowerOnDeferred()) {
+                        server.checkStatus(poller.getReading(slot));
+                    }
+                }
+
+                if (powerOnDeferred) {
+                    for (Server server : polled) {
+                        try {
+                            server.retryPowerOn();
+                        } catch (IOException e) {
+                            logger.log(Level.SEVERE, "PDU of server " + server.id + " unreachable.");
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks which instances are alive, releases the partitions assigned to other instances and locks the ones
+     * assigned to this instance. A partition is only taken over once its previous owner released it, so this is
+     * repeated every cycle until all assigned partitions are locked.
+     * The state of newly owned servers is restored from the snapshots of their previous owners. Released servers
+     * are kept in the own snapshot until another instance has held their partition for a whole cycle.
+     */
+    private void rebalance() {
+        boolean membersChanged;
+
+        try {
+            membersChanged = coordinator.refresh();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage());
+            return;
+        }
+        Set<String> gained = new HashSet<>();
+        Set<String> released;
+
+        synchronized (this) {
+            released = new HashSet<>(ownedServers);
+            Map<String, Boolean> claimed = new HashMap<>();
+            ownedServers.clear();
+            ownedPdus.clear();
+            servers.forEach((k, v) -> {
+                // All PDUs of a group go to the same instance, so its power sum and headroom stay complete
+                if (claimed.computeIfAbsent(partitionOf(v.pduAddress), this::claim)) {
+                    ownedServers.add(k);
+                    ownedPdus.add(v.pduAddress);
+
+                    if (!released.remove(k)) {
+                        gained.add(k);
+                    }
+                }
+            });
+            handedOffServers.addAll(released);
+            handedOffServers.removeAll(ownedServers);
+
+            Set<String> takenOver = new HashSet<>();
+            handedOffServers.removeIf(id -> {
+                String partition = partitionOf(servers.get(id).pduAddress);
+
+                if (!takenOver.contains(partition) && !isTakenOver(partition)) {
+                    return false;
+                }
+                takenOver.add(partition);
+                return takenOverPartitions.contains(partition);
+            });
+            takenOverPartitions = takenOver;
+        }
+
+        if (!gained.isEmpty()) {
+            restoreState(server -> gained.contains(server.id));
+        }
+
+        if (membersChanged || !gained.isEmpty() || !released.isEmpty()) {
+            logger.info("Partitions rebalanced between " + coordinator.getMembers().size() + " instances, "
+                    + coordinator.getInstanceId() + " checks " + ownedServers().size() + " servers.");
+        }
+
+        if (membersChanged) {
+            removeOrphanedStateFiles();
+        }
+    }
+
+    private String partitionOf(String pduAddress) {
+        return pduGroups.getOrDefault(pduAddress, pduAddress);
+    }
+
+    /**
+     * Locks the given partition if it is assigned to this instance and releases it otherwise.
+     *
+     * @return {@code true} if and only if this instance holds the partition.
+     */
+    private boolean claim(String partition) {
+        try {
+            if (coordinator.owns(partition)) {
+                return coordinator.acquire(partition);
+            }
+            coordinator.release(partition);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage());
+        }
+        return false;
+    }
+
+    private boolean isTakenOver(String partition) {
+        try {
+            return coordinator.isLockedByOther(partition);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the state files of instances that have been dead long enough for their servers to be taken over.
+     * Every live instance rebalances at most one check interval after noticing the dead one, which itself takes up
+     * to a lease timeout, so the files are kept for a multiple of the longer of both.
+     */
+    private void removeOrphanedStateFiles() {
+        List<String> members = coordinator.getMembers();
+        long retention = STATE_FILE_RETENTION_FACTOR * Math.max(leaseTimeout, checkInterval * 1000L);
+        // File modification times always come from the system clock
+        long expiry = System.currentTimeMillis() - retention;
+        File[] stateFiles = coordinationDirectory.listFiles((dir, name) -> name.endsWith(STATE_FILE_SUFFIX));
+
+        if (stateFiles == null) {
+            return;
+        }
+
+        for (File stateFile : stateFiles) {
+            String owner = stateFile.getName().substring(0, stateFile.getName().length() - STATE_FILE_SUFFIX.length());
+
+            if (!members.contains(owner) && stateFile.lastModified() < expiry && stateFile.delete()) {
+                logger.info("Removed state file of dead instance " + owner + ".");
+            }
         }
     }
 
@@ -75,20 +441,62 @@ public class ServerManager {
      * Starts a server status check thread. Can be stopped by calling {@link #exit()}.
      */
     public void startCheckCycle() {
-        checkCycle = new Thread(() -> {
-            boolean quit = false;
+        if (checkCycle != null && checkCycle.isAlive()) {
+            return;
+        }
+        stopped = false;
+        checkCycle = new Thread(() -> runCheckCycle(Long.MAX_VALUE, true));
+        checkCycle.start();
+    }
 
-            while (!quit) {
+    /**
+     * Runs the check cycle on the calling thread until {@link #exit()} is called, the thread is interrupted or the
+     * given time has passed. The final state snapshot is written by this thread once it stops, so no other thread
+     * has to touch the snapshot while it runs.
+     *
+     * @param until The time of the manager's clock after which no new cycle is started.
+     * @param printStatus Whether the status of all servers is printed out before every cycle.
+     */
+    void runCheckCycle(long until, boolean printStatus) {
+        if (coordinator != null) {
+            try {
+                coordinator.join();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, e.getMessage());
+                return;
+            }
+        }
+
+        while (!stopped && time.currentTimeMillis() < until) {
+            if (printStatus) {
                 System.out.println(fetchContent());
-                servers.forEach((k, v) -> v.checkStatus());
+            }
 
-                try {
-                    Thread.sleep(checkInterval * 1000L);
-                } catch (InterruptedException e) {
-                    quit = true;
-                }
+            if (coordinator != null) {
+                rebalance();
             }
-        });
+            checkServers();
+            saveState();
+            cycles++;
+
+            try {
+                time.sleep(checkInterval * 1000L);
+            } catch (InterruptedException e) {
+                stopped = true;
+            }
+        }
+        saveState();
+
+        if (coordinator != null) {
+            coordinator.leave();
+
+            synchronized (this) {
+                ownedServers.clear();
+                ownedPdus.clear();
+                handedOffServers.clear();
+                takenOverPartitions.clear();
+            }
+        }
     }
 
     /**
@@ -134,23 +542,122 @@ public class ServerManager {
         return table.render();
     }
 
-    public void restartServer(String id, boolean hardRestart) throws IOException {
+    /**
+     * Restarts a single server.
+     *
+     * @param id The ID of the server.
+     * @param hardRestart Whether the server should be restarted via its power supply.
+     * @return The result of the restart.
+     * @throws IOException If the connection to the PDU fails.
+     */
+    public String restartServer(String id, boolean hardRestart) throws IOException {
         Server server = servers.get(id);
 
         if (server == null) {
             throw new IllegalArgumentException();
-        } else {
-            if (hardRestart) {
-                server.hardRestart(false);
-            } else {
-                if (server.softRestart()) {
-                    logger.log(Level.INFO, "Server " + id + "successfully restarted.");
-                } else {
-                    logger.log(Level.WARNING, "Server " + id + "couldn't be reached.");
-                }
+        }
+        return restart(server, hardRestart);
+    }
+
+    /**
+     * Restarts a server on behalf of the user. Powering on is only deferred to a later cycle if the check cycle is
+     * running, otherwise a hard restart without headroom is refused.
+     */
+    private String restart(Server server, boolean hardRestart) throws IOException {
+        if (!hardRestart) {
+            return server.softRestart() ? "Restarted" : "Unreachable";
+        }
+        boolean checking = checkCycle != null && checkCycle.isAlive() && !stopped;
 
+        if (server.hardRestart(false, checking)) {
+            return "Power cycled";
+        }
+        return checking ? "Power on deferred" : "No power headroom";
+    }
+
+    /**
+     * Restarts all servers matching the selector in parallel.
+     *
+     * @param selector Selects the servers to restart.
+     * @param hardRestart Whether the servers should be restarted via their power supply.
+     * @return A formatted String containing the result for every selected server.
+     * @throws InterruptedException If waiting for the restarts is interrupted.
+     */
+    public String restartServers(ServerSelector selector, boolean hardRestart) throws InterruptedException {
+        List<Server> targets = selectServers(selector);
+
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+        List<String> results = new BatchRunner(batchParallelism).run(targets, server -> {
+            try {
+                return restart(server, hardRestart);
+            } catch (IOException e) {
+                return "PDU unreachable";
             }
+        }, this::describeError);
+        AsciiTable table = new AsciiTable();
+        table.addRule();
+        table.addRow("ID", "Result");
+        table.addRule();
+
+        for (int i = 0; i < targets.size(); i++) {
+            table.addRow(targets.get(i).id, results.get(i));
         }
+        table.addRule();
+        return table.render();
+    }
+
+    /**
+     * Executes a command via SSH on all servers matching the selector in parallel. The output is printed as it
+     * arrives, prefixed with the server's ID.
+     *
+     * @param selector Selects the servers to execute the command on.
+     * @param command The name of a configured command or the command itself.
+     * @return A formatted String containing the exit status and output of every selected server.
+     * @throws InterruptedException If waiting for the commands is interrupted.
+     */
+    public String executeCommand(ServerSelector selector, String command) throws InterruptedException {
+        List<Server> targets = selectServers(selector);
+
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+        String resolved = resolveCommand(command);
+        List<CommandResult> results = new BatchRunner(batchParallelism).run(targets, server ->
+                server.execute(resolved, commandTimeout, line -> System.out.println("[" + server.id + "] " + line)),
+                e -> new CommandResult(false, false, CommandResult.NO_EXIT_STATUS, describeError(e)));
+        AsciiTable table = new AsciiTable();
+        table.addRule();
+        table.addRow("ID", "Result", "Output");
+        table.addRule();
+
+        for (int i = 0; i < targets.size(); i++) {
+            CommandResult result = results.get(i);
+            table.addRow(targets.get(i).id, result.describe(), result.output.trim().replace("\n", "<br>"));
+        }
+        table.addRule();
+        return table.render();
+    }
+
+    /**
+     * Looks up a command configured under the given name.
+     *
+     * @param command The name of a configured command or the command itself.
+     * @return The configured command or {@code command} if there is none with that name.
+     */
+    private String resolveCommand(String command) {
+        return commands.getOrDefault(command, command);
+    }
+
+    /**
+     * Returns the current and peak power draw and the headroom of every PDU and PDU group as a table to print out.
+     * The figures are taken from the readings of the check cycle and the status command.
+     *
+     * @return A formatted String.
+     */
+    public String fetchPowerContent() {
+        return powerAggregator.fetchContent();
     }
 
     /**
@@ -165,26 +672,94 @@ public class ServerManager {
         if (server == null) {
             throw new IllegalArgumentException();
         } else {
-            String powerUsage = "No connection";
-
-            try {
-                powerUsage = String.valueOf(server.fetchPowerUsage());
-            } catch (IOException ignored) {
-
-            }
-            AsciiTable table = new AsciiTable();
-            table.addRule();
-            table.addRow("ID", "Status", "PDU-Index", "PDU-Outlet", "Power Usage");
-            table.addRule();
-            table.addRow(server.id, server.getStatus().name(), server.pduIndex, server.pduOutletNumber, powerUsage);
+            AsciiTable table = createStatusTable();
+            table.addRow(server.id, server.getStatus().name(), server.pduIndex, server.pduOutletNumber,
+                    fetchPowerUsageOf(server));
             table.addRule();
             return table.render();
         }
     }
 
+    /**
+     * Fetches the status and power usage of all servers matching the selector in parallel.
+     *
+     * @param selector Selects the servers to fetch.
+     * @return A formatted String.
+     * @throws InterruptedException If waiting for the PDUs is interrupted.
+     */
+    public String fetchStatusOf(ServerSelector selector) throws InterruptedException {
+        List<Server> targets = selectServers(selector);
+
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+        List<String> powerUsages = new BatchRunner(batchParallelism).run(targets, this::fetchPowerUsageOf,
+                this::describeError);
+        AsciiTable table = createStatusTable();
+
+        for (int i = 0; i < targets.size(); i++) {
+            Server server = targets.get(i);
+            table.addRow(server.id, server.getStatus().name(), server.pduIndex, server.pduOutletNumber, powerUsages.get(i));
+        }
+        table.addRule();
+        return table.render();
+    }
+
+    private String fetchPowerUsageOf(Server server) {
+        int powerUsage = PowerPoller.NO_READING;
+
+        try {
+            powerUsage = server.fetchPowerUsage();
+            powerAggregator.update(server.getPowerSlot(), powerUsage);
+        } catch (IOException ignored) {
+
+        }
+        return powerUsage == PowerPoller.NO_READING ? "No connection" : String.valueOf(powerUsage);
+    }
+
+    /**
+     * Describes an unexpected exception of a batch task for the result tables.
+     *
+     * @param e The exception thrown by the task.
+     * @return The message prefixed with {@code Error:}.
+     */
+    private String describeError(RuntimeException e) {
+        logger.log(Level.WARNING, "Batch task failed.", e);
+        return "Error: " + (e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+    }
+
+    private AsciiTable createStatusTable() {
+        AsciiTable table = new AsciiTable();
+        table.addRule();
+        table.addRow("ID", "Status", "PDU-Index", "PDU-Outlet", "Power Usage");
+        table.addRule();
+        return table;
+    }
+
+    /**
+     * Collects all servers matching the selector.
+     *
+     * @param selector The selector to match.
+     * @return The matching servers sorted by their ID.
+     */
+    List<Server> selectServers(ServerSelector selector) {
+        List<Server> selected = new ArrayList<>();
+        servers.forEach((k, v) -> {
+            if (selector.matches(v)) {
+                selected.add(v);
+            }
+        });
+        selected.sort(Comparator.comparing(server -> server.id));
+        return selected;
+    }
+
     private void writeDefaultConfigFile(FileWriter out) throws IOException {
         out.write("{\n");
         out.write("\"checkIntervalInSeconds\": <VALUE>,\n");
+        out.write("\"commands\": {\"<NAME>\": \"<COMMAND>\"},\n");
+        out.write("\"drainCommands\": [\"<NAME or COMMAND>\"],\n");
+        out.write("\"rebootCommand\": \"<NAME or COMMAND>\",\n");
+        out.write("\"pdus\": [{\"ip\": \"<IPV4>\", \"group\": \"<VALUE>\", \"capacityWatts\": <VALUE>}],\n");
         out.write("\"servers\": [\n");
         out.write("               {\n");
         out.write("                 \"id\": \"<VALUE>\",\n");
@@ -193,6 +768,7 @@ public class ServerManager {
         out.write("                 \"pduIndex\": <VALUE>,\n");
         out.write("                 \"pduOutletNumber\": <VALUE>,\n");
         out.write("                 \"triggerMinimumPower\": <VALUE>,\n");
+        out.write("                 \"tags\": [\"<VALUE>\"],\n");
         out.write("                 \"maintenance\": <true/false>\n");
         out.write("               }\n");
         out.write("           ]\n");
@@ -200,11 +776,36 @@ public class ServerManager {
     }
 
     /**
-     * Stops the check cycle loop if it is running.
+     * Gets the number of check cycles run so far.
+     *
+     * @return The number of cycles.
+     */
+    long getCycleCount() {
+        return cycles;
+    }
+
+    /**
+     * Stops the check cycle loop if it is running and waits until it has written its final state snapshot.
      */
     public void exit() {
-        if (checkCycle != null && checkCycle.isAlive()) {
+        stopped = true;
+
+        if (checkCycle != null) {
             checkCycle.interrupt();
+
+            try {
+                checkCycle.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.log(Level.WARNING, "Interrupted while waiting for the check cycle to stop.");
+                return;
+            }
+        }
+
+        try {
+            snapshot.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot close state file.");
         }
     }
 }
\ No newline at end of file
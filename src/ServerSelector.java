@@ -0,0 +1,117 @@
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Selects a set of servers by ID glob, tag and/or PDU address.
+ * All given criteria have to match for a server to be selected.
+ */
+class ServerSelector {
+
+    private static final String TAG_OPTION = "--TAG";
+    private static final String PDU_OPTION = "--PDU";
+
+    private final String idPattern;
+    private final Pattern idRegex;
+    private final String tag;
+    private final String pduAddress;
+
+    private ServerSelector(String idPattern, String tag, String pduAddress) {
+        this.idPattern = idPattern;
+        this.idRegex = idPattern == null ? null : Pattern.compile(globToRegex(idPattern));
+        this.tag = tag;
+        this.pduAddress = pduAddress;
+    }
+
+    /**
+     * Parses selector tokens such as {@code rack3-*}, {@code --tag db} or {@code --pdu 10.0.0.5}.
+     *
+     * @param tokens The command arguments without the command itself and without any other options.
+     * @return The parsed selector.
+     * @throws IllegalArgumentException If the tokens are empty, an option misses its value or an ID is given twice.
+     */
+    static ServerSelector parse(List<String> tokens) {
+        String idPattern = null;
+        String tag = null;
+        String pduAddress = null;
+
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.get(i).replaceAll("\"", "");
+
+            if (token.equalsIgnoreCase(TAG_OPTION) || token.equalsIgnoreCase(PDU_OPTION)) {
+                if (i + 1 >= tokens.size()) {
+                    throw new IllegalArgumentException();
+                }
+                String value = tokens.get(++i).replaceAll("\"", "");
+
+                if (token.equalsIgnoreCase(TAG_OPTION)) {
+                    tag = value;
+                } else {
+                    pduAddress = value;
+                }
+            } else if (idPattern == null) {
+                idPattern = token;
+            } else {
+                throw new IllegalArgumentException();
+            }
+        }
+
+        if (idPattern == null && tag == null && pduAddress == null) {
+            throw new IllegalArgumentException();
+        }
+        return new ServerSelector(idPattern, tag, pduAddress);
+    }
+
+    /**
+     * Whether this selector addresses exactly one server by its plain ID.
+     *
+     * @return {@code true} if and only if neither wildcards nor options were used.
+     */
+    boolean isSingleId() {
+        return idPattern != null && tag == null && pduAddress == null
+                && idPattern.indexOf('*') < 0 && idPattern.indexOf('?') < 0;
+    }
+
+    /**
+     * Gets the plain server ID of a single ID selector.
+     *
+     * @return The ID or glob pattern given, {@code null} if only options were used.
+     */
+    String getIdPattern() {
+        return idPattern;
+    }
+
+    boolean matches(Server server) {
+        return (idRegex == null || idRegex.matcher(server.id).matches())
+                && (tag == null || server.hasTag(tag))
+                && (pduAddress == null || pduAddress.equals(server.pduAddress));
+    }
+
+    /**
+     * Converts a glob with {@code *} and {@code ?} wildcards to a regex, all other characters are matched literally.
+     *
+     * @param glob The glob pattern.
+     * @return The equivalent regex.
+     */
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return regex.toString();
+    }
+
+}
@@ -0,0 +1,293 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the runtime state of the servers in a memory-mapped file so a restarted manager can resume where the
+ * previous one stopped.
+ *
+ * The file consists of a header and two slots that are written alternately. Each slot carries a sequence number
+ * and a CRC32 checksum, so a torn write only ever damages the slot being written and the other one is still loaded.
+ * The high bit of a server's status byte marks a deferred power on, so snapshots written without it still load.
+ */
+class StateSnapshot {
+
+    // CONSTANTS
+    private static final int MAGIC = 0x53525354; // "SRST"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int CAPACITY_POSITION = 8;
+    private static final int SLOT_HEADER_SIZE = 24; // sequence, timestamp, length, checksum
+    private static final int CHECKSUM_POSITION = 20;
+    private static final int INITIAL_SLOT_CAPACITY = 64 * 1024;
+    private static final int POWER_ON_DEFERRED_FLAG = 0x80;
+
+    private final File file;
+    private final TimeSource time;
+
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer mapped;
+    private int slotCapacity;
+    private long sequence;
+    private long timestamp;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SLOT_CAPACITY);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * The state of a single server as read from the snapshot.
+     */
+    static class Entry {
+
+        final ServerStatus status;
+        final int restartTries;
+        final boolean powerOnDeferred;
+
+        Entry(ServerStatus status, int restartTries, boolean powerOnDeferred) {
+            this.status = status;
+            this.restartTries = restartTries;
+            this.powerOnDeferred = powerOnDeferred;
+        }
+    }
+
+    StateSnapshot(File file) {
+        this(file, TimeSource.SYSTEM);
+    }
+
+    /**
+     * @param file The snapshot file, created on the first write if it doesn't exist.
+     * @param time The clock the snapshots are timestamped with.
+     */
+    StateSnapshot(File file, TimeSource time) {
+        this.file = file;
+        this.time = time;
+    }
+
+    /**
+     * Loads the newest valid snapshot.
+     *
+     * @return The saved states by server ID. Empty if there is no snapshot file or none of its slots is valid.
+     * @throws IOException If the snapshot file cannot be read.
+     */
+    synchronized Map<String, Entry> load() throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+
+        if (!open()) {
+            return entries;
+        }
+        int newestSlot = -1;
+        long newestSequence = -1;
+
+        for (int slot = 0; slot < 2; slot++) {
+            long slotSequence = readValidSequence(slot);
+
+            if (slotSequence > newestSequence) {
+                newestSlot = slot;
+                newestSequence = slotSequence;
+            }
+        }
+
+        if (newestSlot >= 0) {
+            sequence = newestSequence;
+            ByteBuffer slot = slotBuffer(newestSlot, slotCapacity);
+            slot.position(8);
+            timestamp = slot.getLong();
+            slot.position(SLOT_HEADER_SIZE);
+            int count = slot.getInt();
+            ServerStatus[] statuses = ServerStatus.values();
+
+            for (int i = 0; i < count; i++) {
+                byte[] id = new byte[slot.getShort()];
+                slot.get(id);
+                int flags = slot.get() & 0xFF;
+                int status = flags & ~POWER_ON_DEFERRED_FLAG;
+                int restartTries = slot.getInt();
+
+                if (status < statuses.length) {
+                    entries.put(new String(id, StandardCharsets.UTF_8), new Entry(statuses[status], restartTries,
+                            (flags & POWER_ON_DEFERRED_FLAG) != 0));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Gets the time the loaded or last written snapshot was taken.
+     *
+     * @return The time in milliseconds since the epoch, 0 if there is none.
+     */
+    synchronized long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Writes the state of the given servers into the older slot and forces it to disk.
+     *
+     * @param servers The servers to save.
+     * @throws IOException If the snapshot file cannot be written.
+     */
+    synchronized void write(Collection<Server> servers) throws IOException {
+        if (mapped == null) {
+            load();
+
+            if (mapped == null) {
+                create();
+            }
+        }
+        encode(servers);
+        int length = buffer.position() - SLOT_HEADER_SIZE;
+        long nextSequence = sequence + 1;
+        int capacity = slotCapacity;
+
+        if (SLOT_HEADER_SIZE + length > capacity) {
+            // The slots are enlarged in place. Since the capacity at least doubles the new second slot lies completely
+            // behind the old data, so the old slots stay valid until the header is switched over.
+            while (SLOT_HEADER_SIZE + length > capacity) {
+                capacity *= 2;
+            }
+            mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * capacity);
+
+            if (nextSequence % 2 == 0) {
+                nextSequence++;
+            }
+        }
+        timestamp = time.currentTimeMillis();
+        buffer.putLong(0, nextSequence);
+        buffer.putLong(8, timestamp);
+        buffer.putInt(16, length);
+        crc.reset();
+        crc.update(buffer.array(), 0, CHECKSUM_POSITION);
+        crc.update(buffer.array(), SLOT_HEADER_SIZE, length);
+        buffer.putInt(CHECKSUM_POSITION, (int) crc.getValue());
+
+        ByteBuffer slot = slotBuffer((int) (nextSequence % 2), capacity);
+        slot.put(buffer.array(), 0, SLOT_HEADER_SIZE + length);
+        mapped.force();
+
+        if (capacity != slotCapacity) {
+            mapped.putInt(CAPACITY_POSITION, capacity);
+            mapped.force();
+            slotCapacity = capacity;
+        }
+        sequence = nextSequence;
+    }
+
+    private void encode(Collection<Server> servers) {
+        buffer.clear();
+        buffer.position(SLOT_HEADER_SIZE);
+        ensureBufferSpace(4);
+        buffer.putInt(servers.size());
+
+        for (Server server : servers) {
+            byte[] id = server.id.getBytes(StandardCharsets.UTF_8);
+            ensureBufferSpace(2 + id.length + 5);
+            buffer.putShort((short) id.length);
+            buffer.put(id);
+            int flags = server.isPowerOnDeferred() ? POWER_ON_DEFERRED_FLAG : 0;
+            buffer.put((byte) (server.getStatus().ordinal() | flags));
+            buffer.putInt(server.getRestartTries());
+        }
+    }
+
+    private void ensureBufferSpace(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    /**
+     * Returns the sequence number of the slot if its checksum is valid, -1 otherwise.
+     */
+    private long readValidSequence(int slotIndex) {
+        ByteBuffer slot = slotBuffer(slotIndex, slotCapacity);
+        long slotSequence = slot.getLong();
+        slot.getLong();
+        int length = slot.getInt();
+        int checksum = slot.getInt();
+
+        if (slotSequence <= 0 || length < 0 || length > slotCapacity - SLOT_HEADER_SIZE) {
+            return -1;
+        }
+        byte[] content = new byte[SLOT_HEADER_SIZE + length];
+        slot.position(0);
+        slot.get(content);
+        crc.reset();
+        crc.update(content, 0, CHECKSUM_POSITION);
+        crc.update(content, SLOT_HEADER_SIZE, length);
+        return (int) crc.getValue() == checksum && slotSequence % 2 == slotIndex ? slotSequence : -1;
+    }
+
+    private ByteBuffer slotBuffer(int slotIndex, int capacity) {
+        ByteBuffer slot = mapped.duplicate();
+        slot.position(HEADER_SIZE + slotIndex * capacity);
+        slot = slot.slice();
+        slot.limit(capacity);
+        return slot;
+    }
+
+    /**
+     * Maps an existing snapshot file.
+     *
+     * @return {@code false} if the file is missing or has an unknown format.
+     */
+    private boolean open() throws IOException {
+        close();
+
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return false;
+        }
+        RandomAccessFile existing = new RandomAccessFile(file, "rw");
+        MappedByteBuffer header = existing.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        int capacity = header.getInt(CAPACITY_POSITION);
+
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || capacity < SLOT_HEADER_SIZE
+                || existing.length() < HEADER_SIZE + 2L * capacity) {
+            existing.close();
+            return false;
+        }
+        randomAccessFile = existing;
+        slotCapacity = capacity;
+        mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * capacity);
+        return true;
+    }
+
+    private void create() throws IOException {
+        close();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        slotCapacity = INITIAL_SLOT_CAPACITY;
+        sequence = 0;
+        mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * slotCapacity);
+        mapped.putInt(0, MAGIC);
+        mapped.putInt(4, VERSION);
+        mapped.putInt(CAPACITY_POSITION, slotCapacity);
+        mapped.force();
+    }
+
+    /**
+     * Releases the snapshot file. It is opened again by the next write.
+     *
+     * @throws IOException If closing the file fails.
+     */
+    synchronized void close() throws IOException {
+        mapped = null;
+
+        if (randomAccessFile != null) {
+            randomAccessFile.close();
+            randomAccessFile = null;
+        }
+    }
+
+}
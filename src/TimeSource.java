@@ -0,0 +1,35 @@
+/**
+ * Provides the current time and lets the calling thread wait, so the checks can run against a virtual clock.
+ */
+interface TimeSource {
+
+    /**
+     * The system clock.
+     */
+    TimeSource SYSTEM = new TimeSource() {
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    };
+
+    /**
+     * @return The current time in milliseconds since the epoch.
+     */
+    long currentTimeMillis();
+
+    /**
+     * Waits for the given time.
+     *
+     * @param millis The time to wait in milliseconds.
+     * @throws InterruptedException If the waiting thread is interrupted.
+     */
+    void sleep(long millis) throws InterruptedException;
+
+}
@@ -0,0 +1,31 @@
+/**
+ * A clock that only advances when someone waits on it, so hours of checks can be simulated in seconds.
+ * Not thread-safe, the simulation runs on a single thread.
+ */
+class VirtualClock implements TimeSource {
+
+    private long now;
+
+    /**
+     * @param start The initial time in milliseconds.
+     */
+    VirtualClock(long start) {
+        now = start;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    /**
+     * Advances the clock by the given time without blocking.
+     *
+     * @param millis The time to advance in milliseconds.
+     */
+    @Override
+    public void sleep(long millis) {
+        now += millis;
+    }
+
+}
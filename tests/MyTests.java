@@ -1,7 +1,35 @@
 import com.jcraft.jsch.JSchException;
 import org.junit.Test;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.TransportMapping;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class MyTests {
 
@@ -18,4 +46,447 @@ public class MyTests {
         server.softRestart();
     }
 
+    @Test
+    public void globsMatchWildcardsAndLiteralMetacharacters() {
+        assertTrue("rack3-web1".matches(ServerSelector.globToRegex("rack3-*")));
+        assertTrue("rack3-web1".matches(ServerSelector.globToRegex("rack?-web?")));
+        assertFalse("rack31-web1".matches(ServerSelector.globToRegex("rack?-web?")));
+        assertTrue("db.1+(a)".matches(ServerSelector.globToRegex("db.1+(a)")));
+        assertFalse("dbx1+(a)".matches(ServerSelector.globToRegex("db.1+(a)")));
+        assertTrue("[db].1".matches(ServerSelector.globToRegex("[db].*")));
+        assertFalse("d.1".matches(ServerSelector.globToRegex("[db].*")));
+    }
+
+    @Test
+    public void selectorsCombineIdTagAndPdu() throws IOException, JSchException {
+        Server web = new Server("rack3-web1", "", "10.0.0.5", 1, 1, 1000, "", false);
+        Server db = new Server("rack3-db1", "", "10.0.0.5", 1, 2, 1000, "", false);
+        Server other = new Server("rack4-web1", "", "10.0.0.6", 1, 1, 1000, "", false);
+        web.setTags(Collections.singletonList("web"));
+        db.setTags(Collections.singletonList("db"));
+        other.setTags(Collections.singletonList("web"));
+
+        ServerSelector selector = ServerSelector.parse(Arrays.asList("rack*", "--tag", "web", "--PDU", "\"10.0.0.5\""));
+        assertFalse(selector.isSingleId());
+        assertTrue(selector.matches(web));
+        assertFalse(selector.matches(db));
+        assertFalse(selector.matches(other));
+
+        selector = ServerSelector.parse(Arrays.asList("--tag", "web"));
+        assertTrue(selector.matches(web) && selector.matches(other) && !selector.matches(db));
+        assertTrue(ServerSelector.parse(Collections.singletonList("rack3-web1")).isSingleId());
+    }
+
+    @Test
+    public void selectorsRejectIncompleteTokens() {
+        for (List<String> tokens : Arrays.asList(Arrays.asList("rack*", "--tag"),
+                Collections.singletonList("--pdu"), Arrays.asList("a", "b"), Collections.<String>emptyList())) {
+            try {
+                ServerSelector.parse(tokens);
+                throw new AssertionError("Parsed " + tokens);
+            } catch (IllegalArgumentException expected) {
+
+            }
+        }
+    }
+
+    @Test
+    public void batchFailuresBecomeResults() throws IOException, JSchException, InterruptedException {
+        List<Server> targets = Arrays.asList(new Server("a", "", "10.0.0.5", 1, 1, 1000, "", false),
+                new Server("b", "", "10.0.0.5", 1, 2, 1000, "", false));
+        List<String> results = new BatchRunner(2).run(targets, server -> {
+            if (server.id.equals("b")) {
+                throw new IllegalStateException("broken");
+            }
+            return "ok";
+        }, e -> "Error: " + e.getMessage());
+        assertEquals(Arrays.asList("ok", "Error: broken"), results);
+    }
+
+    @Test
+    public void execCommandsFollowTheSeparator() {
+        assertEquals("uptime -p", Main.commandAfterSeparator("exec rack3-* -- uptime -p"));
+        assertEquals("ls   -la", Main.commandAfterSeparator("  E --tag db\t--  ls   -la  "));
+        assertEquals("echo -- done", Main.commandAfterSeparator("exec --pdu 10.0.0.5 -- echo -- done"));
+        assertEquals("restart-web", Main.commandAfterSeparator("exec --tag web -- restart-web"));
+        assertNull(Main.commandAfterSeparator("exec rack3-* --"));
+        assertNull(Main.commandAfterSeparator("exec rack3-* uptime"));
+        assertNull(Main.commandAfterSeparator("exec --tag db"));
+    }
+
+    @Test
+    public void commandResultsDescribeTheirOutcome() {
+        assertEquals("Unreachable", new CommandResult(false, false, CommandResult.NO_EXIT_STATUS, "").describe());
+        assertEquals("Timed out", new CommandResult(true, true, CommandResult.NO_EXIT_STATUS, "").describe());
+        assertEquals("Exit 0", new CommandResult(true, false, 0, "").describe());
+        assertEquals("Exit 2", new CommandResult(true, false, 2, "").describe());
+        assertTrue(new CommandResult(true, false, 0, "").succeeded());
+        assertFalse(new CommandResult(true, false, 2, "").succeeded());
+    }
+
+    @Test
+    public void commandOutputIsSplitIntoLines() throws IOException {
+        byte[] bytes = "first\r\nsecond\nthird \u00fc\u20ac".getBytes(StandardCharsets.UTF_8);
+        int split = bytes.length - 2; // Inside the last character
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        StringBuilder output = new StringBuilder();
+        List<String> lines = new ArrayList<>();
+
+        assertTrue(Server.readAvailable(new ByteArrayInputStream(bytes, 0, split), line, output, lines::add));
+        assertEquals(Arrays.asList("first", "second"), lines);
+
+        assertTrue(Server.readAvailable(new ByteArrayInputStream(bytes, split, bytes.length - split), line, output,
+                lines::add));
+        assertFalse(Server.readAvailable(new ByteArrayInputStream(new byte[0]), line, output, lines::add));
+        assertTrue(Server.readAvailable(new ByteArrayInputStream("\n\n".getBytes(StandardCharsets.UTF_8)), line,
+                output, lines::add));
+        assertEquals(Arrays.asList("first", "second", "third \u00fc\u20ac"), lines);
+        assertEquals("first\nsecond\nthird \u00fc\u20ac\n", output.toString());
+    }
+
+    @Test
+    public void stateSnapshotFallsBackToOlderSlot() throws IOException, JSchException {
+        File file = File.createTempFile("state", ".bin");
+        Server server = new Server("id", "", "127.0.0.1", 1, 1, 1000, "", true);
+        StateSnapshot snapshot = new StateSnapshot(file);
+        server.restoreState(ServerStatus.inactive, 2, false);
+        snapshot.write(Collections.singletonList(server));
+        server.restoreState(ServerStatus.failedRestarts, 3, true);
+        snapshot.write(Collections.singletonList(server));
+        snapshot.close();
+
+        Map<String, StateSnapshot.Entry> saved = new StateSnapshot(file).load();
+        assertEquals(ServerStatus.failedRestarts, saved.get("id").status);
+        assertTrue(saved.get("id").powerOnDeferred);
+
+        try (RandomAccessFile corrupt = new RandomAccessFile(file, "rw")) {
+            corrupt.seek(16 + 24);
+            corrupt.write(0xFF);
+        }
+        saved = new StateSnapshot(file).load();
+        assertEquals(ServerStatus.inactive, saved.get("id").status);
+        assertEquals(2, saved.get("id").restartTries);
+        assertFalse(saved.get("id").powerOnDeferred);
+        file.delete();
+    }
+
+    @Test
+    public void partitionsCoverEveryPduExactlyOnce() throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "coordination-" + System.nanoTime());
+        PartitionCoordinator first = new PartitionCoordinator(directory, "first", 10000);
+        PartitionCoordinator second = new PartitionCoordinator(directory, "second", 10000);
+
+        try {
+            first.join();
+            second.join();
+            first.refresh();
+            second.refresh();
+            int ownedByFirst = 0;
+
+            for (int i = 0; i < 1000; i++) {
+                String pduAddress = "10.0." + (i / 250) + "." + (i % 250);
+                assertTrue(first.owns(pduAddress) != second.owns(pduAddress));
+
+                if (first.owns(pduAddress)) {
+                    ownedByFirst++;
+                }
+            }
+            assertTrue(ownedByFirst > 300 && ownedByFirst < 700);
+
+            second.leave();
+            assertTrue(first.refresh());
+            assertTrue(first.owns("10.0.0.1") && first.owns("10.0.3.249"));
+        } finally {
+            second.leave();
+            first.leave();
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void deadAndHungInstancesAreDropped() throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "coordination-" + System.nanoTime());
+        PartitionCoordinator first = new PartitionCoordinator(directory, "first", 10000);
+
+        try {
+            first.join();
+            // Leases created here are probed like those of other processes, only the ones joined are known locally
+            File dead = new File(directory, "dead.lease");
+            File hung = new File(directory, "hung.lease");
+            File alive = new File(directory, "alive.lease");
+
+            try (RandomAccessFile deadLease = new RandomAccessFile(dead, "rw");
+                 RandomAccessFile hungLease = new RandomAccessFile(hung, "rw");
+                 RandomAccessFile aliveLease = new RandomAccessFile(alive, "rw");
+                 FileLock hungLock = hungLease.getChannel().lock();
+                 FileLock aliveLock = aliveLease.getChannel().lock()) {
+                deadLease.writeLong(System.currentTimeMillis());
+                hungLease.writeLong(System.currentTimeMillis() - 20000);
+                aliveLease.writeLong(System.currentTimeMillis());
+                deadLease.close();
+
+                assertTrue(first.refresh());
+                assertEquals(Arrays.asList("alive", "first"), first.getMembers());
+            }
+            assertFalse(dead.exists());
+            assertTrue(hung.exists());
+
+            alive.delete();
+            assertTrue(first.refresh());
+            assertEquals(Collections.singletonList("first"), first.getMembers());
+            assertTrue(first.owns("10.0.0.1") && first.owns("10.0.3.249"));
+        } finally {
+            first.leave();
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void partitionsAreTakenOverOnlyAfterRelease() throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "coordination-" + System.nanoTime());
+        PartitionCoordinator first = new PartitionCoordinator(directory, "first", 10000);
+        PartitionCoordinator second = new PartitionCoordinator(directory, "second", 10000);
+
+        try {
+            first.join();
+            second.join();
+            first.refresh();
+            second.refresh();
+            String partition = "group0";
+
+            for (int i = 1; !second.owns(partition); i++) {
+                partition = "group" + i;
+            }
+            // The first instance still holds the partition it owned before the second one joined
+            assertTrue(first.acquire(partition));
+            assertTrue(second.owns(partition));
+            assertFalse(second.acquire(partition));
+            assertTrue(second.isLockedByOther(partition));
+
+            first.release(partition);
+            assertFalse(second.isLockedByOther(partition));
+            assertTrue(second.acquire(partition));
+            assertTrue(first.isLockedByOther(partition));
+            assertFalse(first.acquire(partition));
+        } finally {
+            second.leave();
+            first.leave();
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void deliveringReadingsAllocatesNoGarbage() {
+        final int outletsPerPdu = 48;
+        final int pduCount = 10000 / outletsPerPdu + 1;
+        PowerPoller[] pollers = new PowerPoller[pduCount];
+        PDU[][] responses = new PDU[pduCount][];
+
+        for (int p = 0; p < pduCount; p++) {
+            pollers[p] = new PowerPoller(null, "10.0." + (p / 250) + "." + (p % 250));
+
+            for (int outlet = 1; outlet <= outletsPerPdu; outlet++) {
+                pollers[p].addOutlet(1, outlet);
+            }
+            responses[p] = new PDU[pollers[p].getRequestCount()];
+
+            for (int r = 0; r < responses[p].length; r++) {
+                responses[p][r] = new PDU();
+
+                for (int i = 0; i < PowerPoller.MAX_OUTLETS_PER_REQUEST; i++) {
+                    responses[p][r].add(new VariableBinding(new OID("1.3.6.1"), new Integer32(p + r + i)));
+                }
+            }
+        }
+        // Only the handling of the responses is measured, encoding and sending allocate within the SNMP library
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocated = 0;
+        long sum = 0;
+
+        for (int cycle = 0; cycle < 200; cycle++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+
+            for (int p = 0; p < pduCount; p++) {
+                for (int r = 0; r < responses[p].length; r++) {
+                    pollers[p].deliver(r, responses[p][r]);
+                }
+
+                for (int slot = 0; slot < outletsPerPdu; slot++) {
+                    sum += pollers[p].getReading(slot);
+                }
+            }
+            // The first cycles run interpreted, only the compiled hot path is measured.
+            if (cycle >= 100) {
+                allocated += threads.getThreadAllocatedBytes(threadId) - before;
+            }
+        }
+        assertTrue("Allocated " + allocated / 100 + " bytes per cycle.", allocated / 100 < 1024);
+        assertTrue(sum > 0);
+        assertEquals(3, pollers[1].getReading(PowerPoller.MAX_OUTLETS_PER_REQUEST + 1));
+
+        pollers[1].deliver(1, null);
+        assertEquals(PowerPoller.NO_READING, pollers[1].getReading(PowerPoller.MAX_OUTLETS_PER_REQUEST + 1));
+    }
+
+    @Test
+    public void unknownOutletsDontHideTheirNeighbours() {
+        // Answers like an SNMPv1 agent without outlet 3: the whole request fails with noSuchName
+        Snmp snmp = new Snmp() {
+            @Override
+            public <A extends Address> ResponseEvent<A> send(PDU request, Target<A> target) {
+                PDU response = new PDU();
+
+                for (int i = 0; i < request.size(); i++) {
+                    if (request.get(i).getOid().get(9) == 3) {
+                        response.setErrorStatus(PDU.noSuchName);
+                        response.setErrorIndex(i + 1);
+                    }
+                    response.add(new VariableBinding(request.get(i).getOid(),
+                            new Integer32(request.get(i).getOid().get(9) * 10)));
+                }
+                return new ResponseEvent<>(this, null, request, response, null);
+            }
+        };
+        PowerPoller poller = new PowerPoller(snmp, "10.0.0.1");
+
+        for (int outlet = 1; outlet <= 10; outlet++) {
+            poller.addOutlet(1, outlet);
+        }
+        poller.poll();
+        assertEquals(PowerPoller.NO_READING, poller.getReading(2));
+        assertEquals(10, poller.getReading(0));
+        assertEquals(40, poller.getReading(3));
+        assertEquals(80, poller.getReading(7));
+        assertEquals(100, poller.getReading(9));
+
+        PDU failed = new PDU();
+        failed.setErrorStatus(PDU.noSuchName);
+        failed.setErrorIndex(1);
+        assertFalse(poller.deliver(1, failed));
+        assertEquals(PowerPoller.NO_READING, poller.getReading(8));
+
+        poller.poll();
+        assertEquals(PowerPoller.NO_READING, poller.getReading(2));
+        assertEquals(PowerPoller.NO_READING, poller.getReading(8));
+        assertEquals(40, poller.getReading(3));
+        assertEquals(100, poller.getReading(9));
+    }
+
+    @Test
+    public void powerAggregatesAreUpdatedIncrementally() {
+        PowerAggregator aggregator = new PowerAggregator();
+        aggregator.configurePdu("10.0.0.1", "rack1", 1000);
+        aggregator.configurePdu("10.0.0.2", "rack1", 1000);
+        int first = aggregator.addOutlet("10.0.0.1");
+        int second = aggregator.addOutlet("10.0.0.1");
+        int third = aggregator.addOutlet("10.0.0.2");
+
+        aggregator.update(first, 400);
+        aggregator.update(second, 500);
+        aggregator.update(third, 900);
+        assertTrue(aggregator.hasHeadroomFor(first, 500));
+        assertTrue(!aggregator.hasHeadroomFor(first, 501));
+
+        aggregator.update(second, 100);
+        aggregator.update(third, PowerPoller.NO_READING);
+        assertTrue(aggregator.hasHeadroomFor(first, 900));
+        assertTrue(!aggregator.hasHeadroomFor(first, 901));
+    }
+
+    @Test
+    public void concurrentPowerOnsShareTheHeadroom() throws Exception {
+        AtomicInteger powerOns = new AtomicInteger();
+        Snmp snmp = new Snmp() {
+            @Override
+            public <A extends Address> ResponseEvent<A> send(PDU request, Target<A> target,
+                                                             TransportMapping<? super A> transport) {
+                if (request.get(0).getVariable().toInt() == 0) {
+                    powerOns.incrementAndGet();
+                }
+                return null;
+            }
+        };
+        PowerAggregator aggregator = new PowerAggregator();
+        aggregator.configurePdu("10.0.0.1", null, 1000);
+        Server[] servers = new Server[2];
+
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = new Server("id" + i, "", "10.0.0.1", 1, i + 1, 600, "", true, snmp);
+            servers[i].setPowerAggregator(aggregator, aggregator.addOutlet("10.0.0.1"));
+            servers[i].setTimeSource(new VirtualClock(0));
+            aggregator.update(servers[i].getPowerSlot(), 50);
+        }
+        CyclicBarrier start = new CyclicBarrier(servers.length);
+        Thread[] restarts = new Thread[servers.length];
+        boolean[] poweredOn = new boolean[servers.length];
+
+        for (int i = 0; i < servers.length; i++) {
+            final int index = i;
+            restarts[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    poweredOn[index] = servers[index].hardRestart(false);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            restarts[i].start();
+        }
+
+        for (Thread restart : restarts) {
+            restart.join();
+        }
+        assertEquals(1, powerOns.get());
+        assertTrue(poweredOn[0] != poweredOn[1]);
+        Server running = poweredOn[0] ? servers[0] : servers[1];
+        Server deferred = poweredOn[0] ? servers[1] : servers[0];
+        assertTrue(deferred.isPowerOnDeferred());
+
+        deferred.retryPowerOn();
+        assertEquals(1, powerOns.get());
+
+        aggregator.update(running.getPowerSlot(), 350);
+        deferred.retryPowerOn();
+        assertEquals(2, powerOns.get());
+        assertFalse(deferred.isPowerOnDeferred());
+
+        // Without a check cycle to power on later, a restart without headroom is refused before switching off
+        aggregator.update(deferred.getPowerSlot(), 500);
+        assertFalse(running.hardRestart(false, false));
+        assertFalse(running.isPowerOnDeferred());
+        assertEquals(2, powerOns.get());
+    }
+
+    @Test
+    public void fleetSimulationIsDeterministic() throws IOException, JSchException {
+        FleetSimulation first = new FleetSimulation(500, 6, 300, 42);
+        FleetSimulation second = new FleetSimulation(500, 6, 300, 42);
+        first.scheduleFailure(3600 * 1000L, 7, FleetSimulation.Failure.hang, 0);
+        second.scheduleFailure(3600 * 1000L, 7, FleetSimulation.Failure.hang, 0);
+        first.run(6);
+        second.run(6);
+
+        assertTrue(first.getFailuresInjected() > 0);
+        assertEquals(first.getFailuresInjected(), first.getFailuresDetected());
+        assertTrue(first.getMaxDetectionLatency() <= FleetSimulation.MAX_DETECTION_CYCLES * 300 * 1000L);
+        assertEquals(first.getFailuresInjected(), second.getFailuresInjected());
+        assertEquals(first.getFailuresDetected(), second.getFailuresDetected());
+        assertEquals(first.getMaxDetectionLatency(), second.getMaxDetectionLatency());
+        assertEquals(first.getSoftRestarts(), second.getSoftRestarts());
+        assertEquals(first.getHardRestarts(), second.getHardRestarts());
+        assertEquals(first.getFalsePositiveRestarts(), second.getFalsePositiveRestarts());
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
 }